@@ -17,6 +17,7 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
@@ -32,6 +33,7 @@ import androidx.annotation.RequiresApi;
 import androidx.core.content.ContextCompat;
 import androidx.core.app.NotificationCompat;
 import androidx.media.MediaBrowserServiceCompat;
+import androidx.media.MediaSessionManager;
 import androidx.media.VolumeProviderCompat;
 import androidx.media.app.NotificationCompat.MediaStyle;
 import androidx.media.utils.MediaConstants;
@@ -39,11 +41,15 @@ import androidx.media.utils.MediaConstants;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 
 import io.flutter.embedding.engine.FlutterEngine;
 
@@ -64,14 +70,32 @@ public class AudioService extends MediaBrowserServiceCompat {
     public static final String CUSTOM_ACTION_STOP = "com.ryanheise.audioservice.action.STOP";
     public static final String CUSTOM_ACTION_FAST_FORWARD = "com.ryanheise.audioservice.action.FAST_FORWARD";
     public static final String CUSTOM_ACTION_REWIND = "com.ryanheise.audioservice.action.REWIND";
+    public static final String EXTRA_SEARCH_CANDIDATES = "com.ryanheise.audioservice.SEARCH_CANDIDATES";
     private static final String BROWSABLE_ROOT_ID = "root";
     private static final String RECENT_ROOT_ID = "recent";
+    // The most browsable children of a parent whose children are prefetched.
+    private static final int MAX_PREFETCH_CHILDREN = 8;
+    // The deepest level of children that is prefetched, which bounds the
+    // loads started by one browser connection to 1 + MAX_PREFETCH_CHILDREN.
+    private static final int MAX_PREFETCH_DEPTH = 2;
+    private static final String[] BROWSE_METHODS = {"getChildren", "getMediaItem", "search"};
+    private static final int MAX_SEARCH_RESULTS = 50;
+    private static final int MAX_SEARCH_CANDIDATES = 10;
+    // How long children changed notifications are collected before they are
+    // sent, which is about one frame.
+    private static final long CHILDREN_CHANGED_BATCH_DELAY = 16;
     // See the comment in onMediaButtonEvent to understand how the BYPASS keycodes work.
     // We hijack KEYCODE_MUTE and KEYCODE_MEDIA_RECORD since the media session subsystem
     // considers these keycodes relevant to media playback and will pass them on to us.
     public static final int KEYCODE_BYPASS_PLAY = KeyEvent.KEYCODE_MUTE;
     public static final int KEYCODE_BYPASS_PAUSE = KeyEvent.KEYCODE_MEDIA_RECORD;
     public static final int MAX_COMPACT_ACTIONS = 3;
+    private static final int MEDIA_METADATA_CACHE_SIZE = 4 * 1024 * 1024;
+    private static final int CONTROL_TEMPLATE_CACHE_SIZE = 32;
+    // Android drops notification updates posted more often than about 5 per
+    // second, so we space them out and always deliver the latest on the
+    // trailing edge.
+    private static final long MIN_NOTIFICATION_UPDATE_INTERVAL = 250;
     private static final long AUTO_ENABLED_ACTIONS = PlaybackStateCompat.ACTION_STOP
             | PlaybackStateCompat.ACTION_PAUSE
             | PlaybackStateCompat.ACTION_PLAY
@@ -103,7 +127,9 @@ public class AudioService extends MediaBrowserServiceCompat {
     private static PendingIntent contentIntent;
     private static ServiceListener listener;
     private static List<MediaSessionCompat.QueueItem> queue = new ArrayList<>();
-    private static final Map<String, MediaMetadataCompat> mediaMetadataCache = new HashMap<>();
+    private static final MediaMetadataCache mediaMetadataCache = new MediaMetadataCache(MEDIA_METADATA_CACHE_SIZE);
+    // Shares one instance of each artist, album and genre across items.
+    private static final StringInterner metadataStrings = new StringInterner(StringInterner.DEFAULT_CAPACITY);
 
     public static void init(ServiceListener listener) {
         AudioService.listener = listener;
@@ -120,6 +146,9 @@ public class AudioService extends MediaBrowserServiceCompat {
     }
 
     MediaMetadataCompat createMediaMetadata(String mediaId, String title, String album, String artist, String genre, Long duration, String artUri, Boolean playable, String displayTitle, String displaySubtitle, String displayDescription, RatingCompat rating, Map<?, ?> extras) {
+        album = metadataStrings.intern(album);
+        artist = metadataStrings.intern(artist);
+        genre = metadataStrings.intern(genre);
         MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
                 .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaId)
                 .putString(MediaMetadataCompat.METADATA_KEY_TITLE, title);
@@ -145,32 +174,64 @@ public class AudioService extends MediaBrowserServiceCompat {
         if (rating != null) {
             builder.putRating(MediaMetadataCompat.METADATA_KEY_RATING, rating);
         }
-        if (extras != null) {
-            for (Object o : extras.keySet()) {
-                String key = (String)o;
-                Object value = extras.get(key);
-                if (value instanceof Long) {
-                    builder.putLong(key, (Long)value);
-                } else if (value instanceof Integer) {
-                    builder.putLong(key, (long)((Integer)value));
-                } else if (value instanceof String) {
-                    builder.putString(key, (String)value);
-                } else if (value instanceof Boolean) {
-                    builder.putLong(key, (Boolean)value ? 1 : 0);
-                } else if (value instanceof Double) {
-                    builder.putString(key, value.toString());
-                }
-            }
-        }
+        Extras.putMetadata(builder, extras);
         MediaMetadataCompat mediaMetadata = builder.build();
-        mediaMetadataCache.put(mediaId, mediaMetadata);
+        if (searchIndexEnabled) {
+            searchIndex.put(mediaId, title, artist, album, genre);
+        }
+        // The interned album, artist and genre are shared, so they aren't
+        // counted towards the size of each entry.
+        mediaMetadataCache.put(mediaId, mediaMetadata, extras, MediaMetadataCache.estimateSize(
+                mediaId, title, duration, artUri, playable,
+                displayTitle, displaySubtitle, displayDescription, rating, extras));
         return mediaMetadata;
     }
 
+    /**
+     * Returns the approximate number of bytes saved by sharing the artist,
+     * album and genre strings between media items.
+     */
+    static long getInternedMetadataSavedBytes() {
+        return metadataStrings.getSavedBytes();
+    }
+
     static MediaMetadataCompat getMediaMetadata(String mediaId) {
         return mediaMetadataCache.get(mediaId);
     }
 
+    /**
+     * Returns the cached metadata of the given media ID along with the extras
+     * it was created from, or null if it isn't cached.
+     */
+    static MediaMetadataCache.Entry getMediaMetadataEntry(String mediaId) {
+        return mediaMetadataCache.getEntry(mediaId);
+    }
+
+    /**
+     * Returns a media item for the cached metadata of the given media ID, or
+     * null if it isn't cached.
+     */
+    static MediaBrowserCompat.MediaItem getCachedMediaItem(String mediaId) {
+        MediaMetadataCache.Entry entry = mediaMetadataCache.getEntry(mediaId);
+        return entry != null ? AudioServicePlugin.createMediaItem(entry.metadata, entry.extras) : null;
+    }
+
+    /**
+     * Retains the metadata of the given queue items in the cache until the
+     * queue changes. Call this before creating the queue's metadata.
+     */
+    static void pinQueueMetadata(Set<String> mediaIds) {
+        mediaMetadataCache.pinQueue(mediaIds);
+    }
+
+    /**
+     * Retains the metadata of the now-playing item in the cache until it
+     * changes. Call this before creating the item's metadata.
+     */
+    static void pinNowPlayingMetadata(String mediaId) {
+        mediaMetadataCache.pinNowPlaying(mediaId);
+    }
+
     Bitmap loadArtBitmap(String artUriString, String loadThumbnailUri) {
         Bitmap bitmap = artBitmapCache.get(artUriString);
         if (bitmap != null) return bitmap;
@@ -267,21 +328,85 @@ public class AudioService extends MediaBrowserServiceCompat {
     private AudioServiceConfig config;
     private PowerManager.WakeLock wakeLock;
     private MediaSessionCompat mediaSession;
+    private SessionPublisher sessionPublisher;
+    private final PayloadGuard payloadGuard = new PayloadGuard(0);
+    private final BrowseCache browseCache = new BrowseCache(BrowseCache.DEFAULT_MAX_ITEMS);
+    private BrowseCatalog browseCatalog;
+    private final SearchIndex searchIndex = new SearchIndex(SearchIndex.DEFAULT_MAX_ITEMS);
+    private volatile boolean searchIndexEnabled;
+    // The encoded children served from the catalog by browse cache key,
+    // until the handler answers the same request. Only accessed on the main
+    // thread.
+    private final Map<String, byte[]> catalogServedChildren = new HashMap<>();
+    // The root children limit from the root hints of each browser package.
+    private final Map<String, Integer> rootChildrenLimits = new HashMap<>();
+    // The callbacks waiting on each load of children in flight, keyed like
+    // the browse cache. Only accessed on the main thread.
+    private final Map<String, List<LoadCallback<List<MediaBrowserCompat.MediaItem>>>> pendingChildrenLoads = new HashMap<>();
+    // The request IDs of the loads in pendingChildrenLoads that were started
+    // by prefetching and no browser has requested yet.
+    private final Map<String, Integer> prefetchChildrenLoads = new HashMap<>();
+    private int sharedChildrenLoadCount;
+    private int prefetchCount;
+    // Identifies each browse request to the handler so that it can be told
+    // when a request times out. Only accessed on the main thread.
+    private int lastBrowseRequestId;
+    // The browse requests awaiting a response from the handler by request
+    // ID. Only accessed on the main thread.
+    private final Map<Integer, DeadlineLoad<?>> pendingLoads = new HashMap<>();
+    private final Map<String, LatencyRecorder> browseLatencies = new HashMap<>();
     private MediaSessionCallback mediaSessionCallback;
     private List<MediaControl> controls = new ArrayList<>();
-    private List<NotificationCompat.Action> nativeActions = new ArrayList<>();
-    private List<PlaybackStateCompat.CustomAction> customActions = new ArrayList<>();
+    private volatile List<NotificationCompat.Action> nativeActions = new ArrayList<>();
+    private volatile List<PlaybackStateCompat.CustomAction> customActions = new ArrayList<>();
     private int[] compactActionIndices;
+    // Reused between setState calls while the controls and media item stay
+    // the same, since most updates only change the position.
+    private PlaybackStateCompat.Builder stateBuilder;
+    private Bundle stateExtras;
+    private String stateExtrasMediaId;
+    // Memoized resource lookups, PendingIntents and compiled controls so that
+    // a steady-state setState doesn't need to rebuild them.
+    private final Map<String, Integer> resourceIds = new HashMap<>();
+    private final Map<Integer, PendingIntent> mediaButtonPendingIntents = new HashMap<>();
+    private final LruCache<MediaControl, ControlTemplate> controlTemplates = new LruCache<>(CONTROL_TEMPLATE_CACHE_SIZE);
     private MediaMetadataCompat mediaMetadata;
     private Bitmap artBitmap;
     private String notificationChannelId;
+    private boolean notificationChannelCreated;
+    private NotificationCompat.Builder notificationBuilder;
+    private MediaStyle notificationStyle;
+    private PendingIntent deletePendingIntent;
     private LruCache<String, Bitmap> artBitmapCache;
     private boolean playing = false;
     private AudioProcessingState processingState = AudioProcessingState.idle;
     private int repeatMode;
     private int shuffleMode;
+    private long activeQueueIndex = -1;
+    // The range [queueWindowStart, queueWindowEnd) of the queue currently
+    // published to the media session when androidQueueWindowRadius is set or
+    // the full queue is over the payload budget.
+    private int queueWindowStart = -1;
+    private int queueWindowEnd = -1;
+    private int queueWindowMargin;
     private boolean notificationCreated;
+    private NotificationContent postedNotificationContent;
+    private long lastNotificationUpdateTime;
+    private boolean notificationUpdatePending;
+    private int batchDepth;
+    private boolean notificationUpdateDeferred;
+    private int suppressedNotificationUpdateCount;
     private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable updateNotificationRunnable = this::updateNotification;
+    private final Runnable pendingNotificationUpdateRunnable = () -> {
+        notificationUpdatePending = false;
+        postNotification();
+    };
+    // The children changed notifications waiting to be sent, by parent media
+    // ID. A null value notifies the subscriptions with any options.
+    private final Map<String, Bundle> pendingChildrenChanged = new LinkedHashMap<>();
+    private final Runnable notifyChildrenChangedRunnable = this::flushChildrenChanged;
+    private int coalescedChildrenChangedCount;
     private VolumeProviderCompat volumeProvider;
 
     public AudioProcessingState getProcessingState() {
@@ -310,6 +435,10 @@ public class AudioService extends MediaBrowserServiceCompat {
         playing = false;
         processingState = AudioProcessingState.idle;
         mediaSession = new MediaSessionCompat(this, "media-session");
+        sessionPublisher = new SessionPublisher(mediaSession);
+        for (String method : BROWSE_METHODS) {
+            browseLatencies.put(method, new LatencyRecorder(LatencyRecorder.DEFAULT_CAPACITY));
+        }
 
         configure(new AudioServiceConfig(getApplicationContext()));
 
@@ -319,7 +448,7 @@ public class AudioService extends MediaBrowserServiceCompat {
         mediaSession.setPlaybackState(stateBuilder.build());
         mediaSession.setCallback(mediaSessionCallback = new MediaSessionCallback());
         setSessionToken(mediaSession.getSessionToken());
-        mediaSession.setQueue(queue);
+        publishQueue(true);
 
         PowerManager pm = (PowerManager)getSystemService(Context.POWER_SERVICE);
         wakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, AudioService.class.getName());
@@ -366,11 +495,32 @@ public class AudioService extends MediaBrowserServiceCompat {
         mediaMetadata = null;
         artBitmap = null;
         queue.clear();
+        activeQueueIndex = -1;
+        queueWindowStart = queueWindowEnd = -1;
         mediaMetadataCache.clear();
-        controls.clear();
+        metadataStrings.clear();
+        browseCache.clear();
+        closeBrowseCatalog();
+        searchIndex.clear();
+        rootChildrenLimits.clear();
+        for (DeadlineLoad<?> load : pendingLoads.values()) {
+            load.cancel();
+        }
+        pendingLoads.clear();
+        pendingChildrenLoads.clear();
+        prefetchChildrenLoads.clear();
+        controls = new ArrayList<>();
+        controlTemplates.evictAll();
+        mediaButtonPendingIntents.clear();
+        resourceIds.clear();
         artBitmapCache.evictAll();
         compactActionIndices = null;
+        stateBuilder = null;
+        stateExtras = null;
+        stateExtrasMediaId = null;
         releaseMediaSession();
+        notificationBuilder = null;
+        notificationStyle = null;
         legacyStopForeground(!config.androidResumeOnClick);
         // This still does not solve the Android 11 problem.
         // if (notificationCreated) {
@@ -380,6 +530,14 @@ public class AudioService extends MediaBrowserServiceCompat {
         releaseWakeLock();
         instance = null;
         notificationCreated = false;
+        handler.removeCallbacks(updateNotificationRunnable);
+        handler.removeCallbacks(pendingNotificationUpdateRunnable);
+        notificationUpdatePending = false;
+        postedNotificationContent = null;
+        handler.removeCallbacks(notifyChildrenChangedRunnable);
+        synchronized (pendingChildrenChanged) {
+            pendingChildrenChanged.clear();
+        }
     }
 
     @SuppressWarnings("deprecation")
@@ -400,9 +558,28 @@ public class AudioService extends MediaBrowserServiceCompat {
 
     public void configure(AudioServiceConfig config) {
         this.config = config;
-        notificationChannelId = (config.androidNotificationChannelId != null)
+        payloadGuard.setBudget(config.androidBinderPayloadBudget);
+        browseCache.setTtl(config.androidBrowseCacheTtl);
+        searchIndexEnabled = config.androidSearchIndex;
+        if (!searchIndexEnabled) {
+            searchIndex.clear();
+        }
+        if (config.androidBrowseCatalog && browseCatalog == null) {
+            browseCatalog = new BrowseCatalog(getApplicationContext());
+        } else if (!config.androidBrowseCatalog && browseCatalog != null) {
+            browseCatalog.clear();
+            closeBrowseCatalog();
+        }
+        String notificationChannelId = (config.androidNotificationChannelId != null)
             ? config.androidNotificationChannelId
             : getApplication().getPackageName() + ".channel";
+        if (!notificationChannelId.equals(this.notificationChannelId)) {
+            this.notificationChannelId = notificationChannelId;
+            notificationChannelCreated = false;
+        }
+        // The builder holds config-dependent values, so rebuild it on next use.
+        notificationBuilder = null;
+        notificationStyle = null;
 
         if (config.activityClassName != null) {
             Context context = getApplicationContext();
@@ -424,10 +601,15 @@ public class AudioService extends MediaBrowserServiceCompat {
     }
 
     int getResourceId(String resource) {
-        String[] parts = resource.split("/");
-        String resourceType = parts[0];
-        String resourceName = parts[1];
-        return getResources().getIdentifier(resourceName, resourceType, getApplicationContext().getPackageName());
+        Integer resourceId = resourceIds.get(resource);
+        if (resourceId == null) {
+            String[] parts = resource.split("/");
+            String resourceType = parts[0];
+            String resourceName = parts[1];
+            resourceId = getResources().getIdentifier(resourceName, resourceType, getApplicationContext().getPackageName());
+            resourceIds.put(resource, resourceId);
+        }
+        return resourceId;
     }
 
     NotificationCompat.Action createAction(String resource, String label, long actionCode) {
@@ -440,30 +622,11 @@ public class AudioService extends MediaBrowserServiceCompat {
         return control.customAction != null;
     }
 
-    private Bundle mapToBundle(Map<?, ?> map) {
-        if (map == null) {
-            return null;
-        }
-        Bundle bundle = new Bundle();
-        for (Map.Entry<?, ?> entry : map.entrySet()) {
-            String key = entry.getKey().toString();
-            Object value = entry.getValue();
-            if (value instanceof Integer) {
-                bundle.putInt(key, (Integer)value);
-            } else if (value instanceof Long) {
-                bundle.putLong(key, (Long)value);
-            } else {
-                bundle.putString(key, value.toString());
-            }
-        }
-        return bundle;
-    }
-
     PlaybackStateCompat.CustomAction createCustomAction(MediaControl control) {
         int iconId = getResourceId(control.icon);
         if (control.customAction != null) {
             return new PlaybackStateCompat.CustomAction.Builder(control.customAction.name, control.label, iconId)
-                .setExtras(mapToBundle(control.customAction.extras))
+                .setExtras(Extras.toBundle(control.customAction.extras))
                 .build();
         } else if (Build.VERSION.SDK_INT >= 33) {
             // Android 13 changes MediaControl behavior as documented here:
@@ -487,10 +650,32 @@ public class AudioService extends MediaBrowserServiceCompat {
         return null;
     }
 
+    /**
+     * Returns a compiled template for the given control, building its
+     * notification action or custom action only the first time the control
+     * is seen.
+     */
+    private ControlTemplate getControlTemplate(MediaControl control) {
+        ControlTemplate template = controlTemplates.get(control);
+        if (template == null) {
+            final PlaybackStateCompat.CustomAction customAction = createCustomAction(control);
+            if (customAction != null) {
+                template = new ControlTemplate(null, customAction);
+            } else {
+                template = new ControlTemplate(createAction(control.icon, control.label, control.actionCode), null);
+            }
+            controlTemplates.put(control, template);
+        }
+        return template;
+    }
+
     PendingIntent buildMediaButtonPendingIntent(long action) {
         int keyCode = toKeyCode(action);
         if (keyCode == KeyEvent.KEYCODE_UNKNOWN)
             return null;
+        PendingIntent pendingIntent = mediaButtonPendingIntents.get(keyCode);
+        if (pendingIntent != null)
+            return pendingIntent;
         Intent intent = new Intent(this, MediaButtonReceiver.class);
         intent.setAction(Intent.ACTION_MEDIA_BUTTON);
         intent.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(KeyEvent.ACTION_DOWN, keyCode));
@@ -498,37 +683,52 @@ public class AudioService extends MediaBrowserServiceCompat {
         if (Build.VERSION.SDK_INT >= 23) {
             flags |= PendingIntent.FLAG_IMMUTABLE;
         }
-        return PendingIntent.getBroadcast(this, keyCode, intent, flags);
+        pendingIntent = PendingIntent.getBroadcast(this, keyCode, intent, flags);
+        mediaButtonPendingIntents.put(keyCode, pendingIntent);
+        return pendingIntent;
     }
 
     PendingIntent buildDeletePendingIntent() {
+        if (deletePendingIntent != null)
+            return deletePendingIntent;
         Intent intent = new Intent(this, MediaButtonReceiver.class);
         intent.setAction(MediaButtonReceiver.ACTION_NOTIFICATION_DELETE);
         int flags = 0;
         if (Build.VERSION.SDK_INT >= 23) {
             flags |= PendingIntent.FLAG_IMMUTABLE;
         }
-        return PendingIntent.getBroadcast(this, 0, intent, flags);
+        deletePendingIntent = PendingIntent.getBroadcast(this, 0, intent, flags);
+        return deletePendingIntent;
     }
 
-    void setState(List<MediaControl> controls, long actionBits, int[] compactActionIndices, AudioProcessingState processingState, boolean playing, long position, long bufferedPosition, float speed, long updateTime, Integer errorCode, String errorMessage, int repeatMode, int shuffleMode, boolean captioningEnabled, Long queueIndex) {
+    /**
+     * Updates the playback state.
+     * Gets called from background thread.
+     */
+    synchronized void setState(List<MediaControl> controls, long actionBits, int[] compactActionIndices, AudioProcessingState processingState, boolean playing, long position, long bufferedPosition, float speed, long updateTime, Integer errorCode, String errorMessage, int repeatMode, int shuffleMode, boolean captioningEnabled, Long queueIndex) {
         boolean notificationChanged = false;
         if (!Arrays.equals(compactActionIndices, this.compactActionIndices)) {
             notificationChanged = true;
         }
         if (!controls.equals(this.controls)) {
             notificationChanged = true;
-        }
-        this.controls = controls;
-        this.nativeActions.clear();
-        this.customActions.clear();
-        for (MediaControl control : controls) {
-            final PlaybackStateCompat.CustomAction customAction = createCustomAction(control);
-            if (customAction != null) {
-                customActions.add(customAction);
-            } else {
-                nativeActions.add(createAction(control.icon, control.label, control.actionCode));
+            this.controls = controls;
+            // Replace rather than mutate the lists since the notification
+            // reads them on the main thread.
+            List<NotificationCompat.Action> nativeActions = new ArrayList<>();
+            List<PlaybackStateCompat.CustomAction> customActions = new ArrayList<>();
+            for (MediaControl control : controls) {
+                final ControlTemplate template = getControlTemplate(control);
+                if (template.customAction != null) {
+                    customActions.add(template.customAction);
+                } else {
+                    nativeActions.add(template.action);
+                }
             }
+            this.nativeActions = nativeActions;
+            this.customActions = customActions;
+            // The builder can't remove custom actions once added.
+            stateBuilder = null;
         }
         this.compactActionIndices = compactActionIndices;
         boolean wasPlaying = this.playing;
@@ -538,34 +738,48 @@ public class AudioService extends MediaBrowserServiceCompat {
         this.repeatMode = repeatMode;
         this.shuffleMode = shuffleMode;
 
-        PlaybackStateCompat.Builder stateBuilder = new PlaybackStateCompat.Builder()
-                .setActions(AUTO_ENABLED_ACTIONS | actionBits)
-                .setState(getPlaybackState(), position, speed, updateTime)
-                .setBufferedPosition(bufferedPosition);
-
-        for (PlaybackStateCompat.CustomAction action : this.customActions) {
-            stateBuilder.addCustomAction(action);
+        if (stateBuilder == null) {
+            stateBuilder = new PlaybackStateCompat.Builder();
+            for (PlaybackStateCompat.CustomAction action : this.customActions) {
+                stateBuilder.addCustomAction(action);
+            }
         }
-
-        if (queueIndex != null)
-            stateBuilder.setActiveQueueItemId(queueIndex);
+        // Every field must be set since the builder still holds the values
+        // from the previous call.
+        stateBuilder.setActions(AUTO_ENABLED_ACTIONS | actionBits)
+                .setState(getPlaybackState(), position, speed, updateTime)
+                .setBufferedPosition(bufferedPosition)
+                .setActiveQueueItemId(queueIndex != null ? queueIndex : MediaSessionCompat.QueueItem.UNKNOWN_ID);
         if (errorCode != null && errorMessage != null)
             stateBuilder.setErrorMessage(errorCode, errorMessage);
         else if (errorMessage != null)
             stateBuilder.setErrorMessage(-987654, errorMessage);
+        else
+            stateBuilder.setErrorMessage(0, null);
 
         if (mediaMetadata != null) {
             // Update the progress bar in the browse view as content is playing as explained
             // here: https://developer.android.com/training/cars/media#browse-progress-bar
-            Bundle extras = new Bundle();
-            extras.putString(MediaConstants.PLAYBACK_STATE_EXTRAS_KEY_MEDIA_ID, mediaMetadata.getDescription().getMediaId());
-            stateBuilder.setExtras(extras);
+            String mediaId = mediaMetadata.getDescription().getMediaId();
+            if (stateExtras == null || !Objects.equals(mediaId, stateExtrasMediaId)) {
+                stateExtras = new Bundle();
+                stateExtras.putString(MediaConstants.PLAYBACK_STATE_EXTRAS_KEY_MEDIA_ID, mediaId);
+                stateExtrasMediaId = mediaId;
+            }
+            stateBuilder.setExtras(stateExtras);
+        } else {
+            stateBuilder.setExtras(null);
         }
 
         mediaSession.setPlaybackState(stateBuilder.build());
-        mediaSession.setRepeatMode(repeatMode);
-        mediaSession.setShuffleMode(shuffleMode);
-        mediaSession.setCaptioningEnabled(captioningEnabled);
+        sessionPublisher.setRepeatMode(repeatMode);
+        sessionPublisher.setShuffleMode(shuffleMode);
+        sessionPublisher.setCaptioningEnabled(captioningEnabled);
+
+        if (queueIndex != null && queueIndex != activeQueueIndex) {
+            activeQueueIndex = queueIndex;
+            publishQueue(false);
+        }
 
         if (!wasPlaying && playing) {
             enterPlayingState();
@@ -577,8 +791,34 @@ public class AudioService extends MediaBrowserServiceCompat {
             // TODO: Handle completed state as well?
             stop();
         } else if (processingState != AudioProcessingState.idle && notificationChanged) {
-            updateNotification();
+            handler.removeCallbacks(updateNotificationRunnable);
+            handler.post(updateNotificationRunnable);
+        }
+    }
+
+    /**
+     * Returns the types of the extras declared by the custom action of the
+     * current controls with the given name, or null if there is none.
+     */
+    synchronized Map<String, Integer> getCustomActionExtrasTypes(String name) {
+        for (MediaControl control : controls) {
+            if (control.customAction != null && control.customAction.name.equals(name)) {
+                return control.customAction.extrasTypes;
+            }
         }
+        return null;
+    }
+
+    /**
+     * Returns the builder of the published playback state, which is reused
+     * while the controls are the same.
+     */
+    synchronized PlaybackStateCompat.Builder getStateBuilder() {
+        return stateBuilder;
+    }
+
+    List<PlaybackStateCompat.CustomAction> getCustomActions() {
+        return customActions;
     }
 
     public void setPlaybackInfo(int playbackType, Integer volumeControlType, Integer maxVolume, Integer volume) {
@@ -628,38 +868,34 @@ public class AudioService extends MediaBrowserServiceCompat {
             for (int i = 0; i < compactActionIndices.length; i++) compactActionIndices[i] = i;
         }
         NotificationCompat.Builder builder = getNotificationBuilder();
+        // The builder is reused, so every field that varies between updates
+        // must be set, even if only to clear it.
+        CharSequence title = null;
+        CharSequence subtitle = null;
+        CharSequence description = null;
+        Bitmap largeIcon = null;
         if (mediaMetadata != null) {
-            MediaDescriptionCompat description = mediaMetadata.getDescription();
-            if (description.getTitle() != null)
-                builder.setContentTitle(description.getTitle());
-            if (description.getSubtitle() != null)
-                builder.setContentText(description.getSubtitle());
-            if (description.getDescription() != null)
-                builder.setSubText(description.getDescription());
+            MediaDescriptionCompat mediaDescription = mediaMetadata.getDescription();
+            title = mediaDescription.getTitle();
+            subtitle = mediaDescription.getSubtitle();
+            description = mediaDescription.getDescription();
             synchronized (this) {
-                if (artBitmap != null)
-                    builder.setLargeIcon(artBitmap);
+                largeIcon = artBitmap;
             }
         }
+        builder.setContentTitle(title)
+            .setContentText(subtitle)
+            .setSubText(description)
+            .setLargeIcon(largeIcon);
         if (config.androidNotificationClickStartsActivity)
             builder.setContentIntent(mediaSession.getController().getSessionActivity());
-        // TODO: Look at setColorized
-        if (config.notificationColor != -1)
-            builder.setColor(config.notificationColor);
+        builder.clearActions();
         for (NotificationCompat.Action action : nativeActions) {
             builder.addAction(action);
         }
-        final MediaStyle style = new MediaStyle()
-            .setMediaSession(mediaSession.getSessionToken());
         if (Build.VERSION.SDK_INT < 33) {
-            style.setShowActionsInCompactView(compactActionIndices);
-        }
-        if (config.androidNotificationOngoing) {
-            style.setShowCancelButton(true);
-            style.setCancelButtonIntent(buildMediaButtonPendingIntent(PlaybackStateCompat.ACTION_STOP));
-            builder.setOngoing(true);
+            notificationStyle.setShowActionsInCompactView(compactActionIndices);
         }
-        builder.setStyle(style);
         return builder.build();
     }
 
@@ -667,24 +903,33 @@ public class AudioService extends MediaBrowserServiceCompat {
         return (NotificationManager)getSystemService(Context.NOTIFICATION_SERVICE);
     }
 
-    private /*synchronized*/ NotificationCompat.Builder getNotificationBuilder() {
-        // This local variable could be commented out and replaced by an
-        // instance variable if we want to reuse the builder instance. However,
-        // there doesn't turn out to be much benefit to this since we don't
-        // actually reuse any of the previous notification values when setting
-        // a new notification.
-        NotificationCompat.Builder notificationBuilder = null;
+    /**
+     * Returns the notification builder, creating it on first use with the
+     * parts of the notification that only depend on the config. It is
+     * recreated after the config changes.
+     */
+    private NotificationCompat.Builder getNotificationBuilder() {
         if (notificationBuilder == null) {
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
                 createChannel();
+            notificationStyle = new MediaStyle()
+                .setMediaSession(mediaSession.getSessionToken());
             notificationBuilder = new NotificationCompat.Builder(this, notificationChannelId)
                     .setVisibility(NotificationCompat.VISIBILITY_PUBLIC)
                     .setShowWhen(false)
                     .setDeleteIntent(buildDeletePendingIntent())
+                    .setSmallIcon(getResourceId(config.androidNotificationIcon))
             ;
+            // TODO: Look at setColorized
+            if (config.notificationColor != -1)
+                notificationBuilder.setColor(config.notificationColor);
+            if (config.androidNotificationOngoing) {
+                notificationStyle.setShowCancelButton(true);
+                notificationStyle.setCancelButtonIntent(buildMediaButtonPendingIntent(PlaybackStateCompat.ACTION_STOP));
+                notificationBuilder.setOngoing(true);
+            }
+            notificationBuilder.setStyle(notificationStyle);
         }
-        int iconId = getResourceId(config.androidNotificationIcon);
-        notificationBuilder.setSmallIcon(iconId);
         return notificationBuilder;
     }
 
@@ -696,6 +941,7 @@ public class AudioService extends MediaBrowserServiceCompat {
 
     @RequiresApi(Build.VERSION_CODES.O)
     private void createChannel() {
+        if (notificationChannelCreated) return;
         NotificationManager notificationManager = getNotificationManager();
         NotificationChannel channel = notificationManager.getNotificationChannel(notificationChannelId);
         if (channel == null) {
@@ -705,12 +951,61 @@ public class AudioService extends MediaBrowserServiceCompat {
                 channel.setDescription(config.androidNotificationChannelDescription);
             notificationManager.createNotificationChannel(channel);
         }
+        notificationChannelCreated = true;
+    }
+
+    private NotificationContent getNotificationContent() {
+        CharSequence title = null;
+        CharSequence subtitle = null;
+        CharSequence description = null;
+        if (mediaMetadata != null) {
+            MediaDescriptionCompat mediaDescription = mediaMetadata.getDescription();
+            title = mediaDescription.getTitle();
+            subtitle = mediaDescription.getSubtitle();
+            description = mediaDescription.getDescription();
+        }
+        Bitmap art;
+        synchronized (this) {
+            art = mediaMetadata != null ? artBitmap : null;
+        }
+        return new NotificationContent(title, subtitle, description, art, nativeActions, compactActionIndices, config.androidNotificationOngoing, config.notificationColor);
     }
 
+    /**
+     * Posts the notification if its visible content has changed, no more
+     * often than every MIN_NOTIFICATION_UPDATE_INTERVAL. An update that
+     * arrives too early is deferred until the end of the interval, at which
+     * point the latest state is posted.
+     */
     private void updateNotification() {
-        if (notificationCreated) {
-            getNotificationManager().notify(NOTIFICATION_ID, buildNotification());
+        synchronized (this) {
+            if (batchDepth > 0) {
+                notificationUpdateDeferred = true;
+                return;
+            }
         }
+        if (!notificationCreated) return;
+        long delay = lastNotificationUpdateTime + MIN_NOTIFICATION_UPDATE_INTERVAL - SystemClock.uptimeMillis();
+        if (delay > 0) {
+            if (!notificationUpdatePending) {
+                notificationUpdatePending = true;
+                handler.postDelayed(pendingNotificationUpdateRunnable, delay);
+            }
+            return;
+        }
+        postNotification();
+    }
+
+    private synchronized void postNotification() {
+        if (!notificationCreated) return;
+        NotificationContent content = getNotificationContent();
+        if (content.equals(postedNotificationContent)) {
+            suppressedNotificationUpdateCount++;
+            return;
+        }
+        getNotificationManager().notify(NOTIFICATION_ID, buildNotification());
+        postedNotificationContent = content;
+        lastNotificationUpdateTime = SystemClock.uptimeMillis();
     }
 
     private void enterPlayingState() {
@@ -734,9 +1029,12 @@ public class AudioService extends MediaBrowserServiceCompat {
         releaseWakeLock();
     }
 
-    private void internalStartForeground() {
+    private synchronized void internalStartForeground() {
+        NotificationContent content = getNotificationContent();
         startForeground(NOTIFICATION_ID, buildNotification());
         notificationCreated = true;
+        postedNotificationContent = content;
+        lastNotificationUpdateTime = SystemClock.uptimeMillis();
     }
 
     private void acquireWakeLock() {
@@ -760,6 +1058,7 @@ public class AudioService extends MediaBrowserServiceCompat {
         }
         // Force cancellation of the notification
         getNotificationManager().cancel(NOTIFICATION_ID);
+        postedNotificationContent = null;
     }
 
     private void releaseMediaSession() {
@@ -767,6 +1066,7 @@ public class AudioService extends MediaBrowserServiceCompat {
         deactivateMediaSession();
         mediaSession.release();
         mediaSession = null;
+        sessionPublisher = null;
     }
 
     /**
@@ -775,7 +1075,130 @@ public class AudioService extends MediaBrowserServiceCompat {
      */
     synchronized void setQueue(List<MediaSessionCompat.QueueItem> queue) {
         AudioService.queue = queue;
-        mediaSession.setQueue(queue);
+        publishQueue(true);
+    }
+
+    /**
+     * Publishes the queue to the media session.
+     * <p>
+     * If androidQueueWindowRadius is set, only the items within that radius
+     * of the active queue item are published, and the window is moved along
+     * once playback gets within half a radius of either edge. The published
+     * items are also fitted to the payload budget, which may narrow the
+     * window further. Queue item IDs are always indices into the full queue,
+     * which stays in {@link #queue}.
+     */
+    private synchronized void publishQueue(boolean force) {
+        int radius = config.androidQueueWindowRadius;
+        int size = queue.size();
+        boolean windowed = radius > 0 && size > 2 * radius + 1;
+        if (!force && !windowed && queueWindowStart == -1) return;
+        int index = (int)Math.max(0, Math.min(activeQueueIndex, size - 1));
+        if (!force && queueWindowStart != -1 && index >= queueWindowStart && index < queueWindowEnd) {
+            boolean nearStart = queueWindowStart > 0 && index - queueWindowStart < queueWindowMargin;
+            boolean nearEnd = queueWindowEnd < size && queueWindowEnd - 1 - index < queueWindowMargin;
+            if (!nearStart && !nearEnd) return;
+        }
+        int start = windowed ? Math.max(0, index - radius) : 0;
+        int end = windowed ? Math.min(size, index + radius + 1) : size;
+        List<MediaSessionCompat.QueueItem> published = payloadGuard.fitQueue(
+                windowed ? new ArrayList<>(queue.subList(start, end)) : queue, index - start);
+        if (published.size() < size) {
+            queueWindowStart = (int)published.get(0).getQueueId();
+            queueWindowEnd = queueWindowStart + published.size();
+            queueWindowMargin = windowed && published.size() == end - start ? radius / 2 : published.size() / 4;
+        } else {
+            queueWindowStart = queueWindowEnd = -1;
+        }
+        sessionPublisher.setQueue(published);
+    }
+
+    /**
+     * Invalidates the cached children of a parent and notifies subscribed
+     * browsers that they have changed.
+     */
+    void invalidateChildren(String parentMediaId, Bundle options) {
+        browseCache.invalidate(parentMediaId);
+        notifyChildrenChangedBatched(parentMediaId, options);
+    }
+
+    /**
+     * Notifies subscribed browsers that the children of a parent have
+     * changed, without invalidating the cached children.
+     * <p>
+     * Notifications are collected for a frame and sent together, so that a
+     * burst of changes to the same parent makes browsers reload it once. If
+     * a parent is notified more than once with different options, all of
+     * its subscriptions are notified.
+     */
+    private void notifyChildrenChangedBatched(String parentMediaId, Bundle options) {
+        synchronized (pendingChildrenChanged) {
+            if (pendingChildrenChanged.isEmpty()) {
+                handler.postDelayed(notifyChildrenChangedRunnable, CHILDREN_CHANGED_BATCH_DELAY);
+            }
+            if (pendingChildrenChanged.containsKey(parentMediaId)) {
+                coalescedChildrenChangedCount++;
+                Bundle pendingOptions = pendingChildrenChanged.get(parentMediaId);
+                if (pendingOptions == null || options == null
+                        || !BrowseCache.keyOf(parentMediaId, pendingOptions).equals(BrowseCache.keyOf(parentMediaId, options))) {
+                    options = null;
+                }
+            }
+            pendingChildrenChanged.put(parentMediaId, options);
+        }
+    }
+
+    private void flushChildrenChanged() {
+        Map<String, Bundle> changed;
+        synchronized (pendingChildrenChanged) {
+            changed = new LinkedHashMap<>(pendingChildrenChanged);
+            pendingChildrenChanged.clear();
+        }
+        for (Map.Entry<String, Bundle> entry : changed.entrySet()) {
+            String parentMediaId = entry.getKey();
+            if (entry.getValue() != null) {
+                notifyChildrenChanged(parentMediaId, entry.getValue());
+            } else {
+                notifyChildrenChanged(parentMediaId);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of children changed notifications that were merged
+     * into another for the same parent.
+     */
+    int getCoalescedChildrenChangedCount() {
+        return coalescedChildrenChangedCount;
+    }
+
+    /**
+     * Writes the encoded children loaded from the handler through to the
+     * catalog. If children were served from the catalog for the same request
+     * and the handler's differ, browsers are notified to reload them. The
+     * browse cache already holds the handler's children, so the reload
+     * doesn't go back to the handler.
+     */
+    void storeEncodedChildren(String parentMediaId, Bundle options, byte[] encodedChildren) {
+        if (browseCatalog == null) return;
+        String key = BrowseCache.keyOf(parentMediaId, options);
+        browseCatalog.put(key, parentMediaId, encodedChildren);
+        byte[] servedChildren = catalogServedChildren.remove(key);
+        if (servedChildren != null && !Arrays.equals(servedChildren, encodedChildren)) {
+            notifyChildrenChangedBatched(parentMediaId, options);
+        }
+    }
+
+    private void closeBrowseCatalog() {
+        if (browseCatalog == null) return;
+        browseCatalog.close();
+        browseCatalog = null;
+        catalogServedChildren.clear();
+    }
+
+    /** Fits a browse or search result to the payload budget. */
+    List<MediaBrowserCompat.MediaItem> fitMediaItems(List<MediaBrowserCompat.MediaItem> mediaItems) {
+        return payloadGuard.fitMediaItems(mediaItems);
     }
 
     void playMediaItem(MediaDescriptionCompat description) {
@@ -812,9 +1235,30 @@ public class AudioService extends MediaBrowserServiceCompat {
             }
         }
         this.mediaMetadata = mediaMetadata;
-        mediaSession.setMetadata(mediaMetadata);
-        handler.removeCallbacksAndMessages(null);
-        handler.post(this::updateNotification);
+        sessionPublisher.setMetadata(payloadGuard.fitMetadata(mediaMetadata));
+        if (batchDepth > 0) {
+            notificationUpdateDeferred = true;
+        } else {
+            handler.removeCallbacks(updateNotificationRunnable);
+            handler.post(updateNotificationRunnable);
+        }
+    }
+
+    /**
+     * Starts a batch of updates to the metadata, queue and state. Notification
+     * updates requested within the batch are deferred until
+     * {@link #endBatch()}, at which point at most one update is made.
+     */
+    synchronized void beginBatch() {
+        batchDepth++;
+    }
+
+    synchronized void endBatch() {
+        if (--batchDepth == 0 && notificationUpdateDeferred) {
+            notificationUpdateDeferred = false;
+            handler.removeCallbacks(updateNotificationRunnable);
+            handler.post(updateNotificationRunnable);
+        }
     }
 
     private MediaMetadataCompat putArtToMetadata(MediaMetadataCompat mediaMetadata) {
@@ -828,8 +1272,16 @@ public class AudioService extends MediaBrowserServiceCompat {
     public BrowserRoot onGetRoot(String clientPackageName, int clientUid, Bundle rootHints) {
         Boolean isRecentRequest = rootHints == null ? null : (Boolean)rootHints.getBoolean(BrowserRoot.EXTRA_RECENT);
         if (isRecentRequest == null) isRecentRequest = false;
+        int rootChildrenLimit = rootHints == null ? 0 : rootHints.getInt(MediaConstants.BROWSER_ROOT_HINTS_KEY_ROOT_CHILDREN_LIMIT, 0);
+        if (rootChildrenLimit > 0) {
+            rootChildrenLimits.put(clientPackageName, rootChildrenLimit);
+        } else {
+            rootChildrenLimits.remove(clientPackageName);
+        }
         Bundle extras = config.getBrowsableRootExtras();
-        return new BrowserRoot(isRecentRequest ? RECENT_ROOT_ID : BROWSABLE_ROOT_ID, extras);
+        String rootId = isRecentRequest ? RECENT_ROOT_ID : BROWSABLE_ROOT_ID;
+        prefetchChildren(rootId, Math.min(config.androidBrowsePrefetchDepth, MAX_PREFETCH_DEPTH));
+        return new BrowserRoot(rootId, extras);
         // The response must be given synchronously, and we can't get a
         // synchronous response from the Dart layer. For now, we hardcode
         // the root to "root". This may improve in media2.
@@ -841,31 +1293,441 @@ public class AudioService extends MediaBrowserServiceCompat {
         onLoadChildren(parentMediaId, result, null);
     }
 
+    /**
+     * Loads the children of a parent, paged according to the
+     * {@link MediaBrowserCompat#EXTRA_PAGE} and
+     * {@link MediaBrowserCompat#EXTRA_PAGE_SIZE} options, and limited to the
+     * number of root children requested by the browser in its root hints.
+     * <p>
+     * If androidHandlesBrowsePaging is set, the paging options are passed to
+     * the handler which returns just the requested page. Otherwise, the full
+     * list is loaded, and cached if the browse cache is enabled, and the page
+     * is taken from that.
+     */
     @Override
     public void onLoadChildren(final String parentMediaId, final Result<List<MediaBrowserCompat.MediaItem>> result, Bundle options) {
+        int page = options == null ? -1 : options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        int pageSize = options == null ? -1 : options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        final int from;
+        final int count;
+        final Bundle loadOptions;
+        if (page >= 0 && pageSize > 0) {
+            boolean handlerPages = config.androidHandlesBrowsePaging;
+            from = handlerPages ? 0 : page * pageSize;
+            count = pageSize;
+            loadOptions = handlerPages ? options : withoutPaging(options);
+        } else {
+            from = 0;
+            count = BROWSABLE_ROOT_ID.equals(parentMediaId) ? getRootChildrenLimit() : 0;
+            loadOptions = options;
+        }
+        List<MediaBrowserCompat.MediaItem> cachedChildren = browseCache.get(parentMediaId, loadOptions);
+        if (cachedChildren != null) {
+            result.sendResult(fitMediaItems(subList(cachedChildren, from, count)));
+            return;
+        }
+        LoadCallback<List<MediaBrowserCompat.MediaItem>> callback = new LoadCallback<List<MediaBrowserCompat.MediaItem>>() {
+            @Override
+            public void onLoaded(List<MediaBrowserCompat.MediaItem> children) {
+                result.sendResult(fitMediaItems(subList(children, from, count)));
+            }
+
+            @Override
+            public void onError() {
+                result.sendError(new Bundle());
+            }
+        };
+        if (browseCatalog != null && !AudioServicePlugin.isFlutterReady()) {
+            result.detach();
+            loadChildrenFromCatalog(parentMediaId, loadOptions, callback);
+            return;
+        }
         if (listener == null) {
             result.sendResult(new ArrayList<>());
             return;
         }
-        listener.onLoadChildren(parentMediaId, result, options);
+        result.detach();
+        loadChildren(parentMediaId, loadOptions, false, callback);
+    }
+
+    /**
+     * Loads children from the catalog while the Flutter engine is starting.
+     * The same children are then requested from the handler, which will
+     * answer once it is ready, to reconcile the catalog. If the catalog has
+     * no children for the request, they are loaded from the handler as
+     * usual.
+     */
+    private void loadChildrenFromCatalog(final String parentMediaId, final Bundle loadOptions, final LoadCallback<List<MediaBrowserCompat.MediaItem>> callback) {
+        final String key = BrowseCache.keyOf(parentMediaId, loadOptions);
+        browseCatalog.load(key, new LoadCallback<byte[]>() {
+            @Override
+            public void onLoaded(byte[] encodedChildren) {
+                List<MediaBrowserCompat.MediaItem> children = null;
+                if (encodedChildren != null) {
+                    try {
+                        children = AudioServicePlugin.decodeMediaItems(encodedChildren);
+                    } catch (RuntimeException e) {
+                        // A row from an older encoding or a truncated write
+                        // is treated as a miss.
+                        if (browseCatalog != null) browseCatalog.discard(key, e);
+                    }
+                }
+                if (children != null) {
+                    catalogServedChildren.put(key, encodedChildren);
+                    callback.onLoaded(children);
+                    if (listener != null) {
+                        loadChildren(parentMediaId, loadOptions, false, new LoadCallback<List<MediaBrowserCompat.MediaItem>>() {
+                            @Override
+                            public void onLoaded(List<MediaBrowserCompat.MediaItem> children) {
+                                // storeEncodedChildren has already reconciled the catalog.
+                            }
+
+                            @Override
+                            public void onError() {
+                                // No response will arrive to reconcile with.
+                                catalogServedChildren.remove(key);
+                            }
+                        });
+                    }
+                } else if (listener != null) {
+                    loadChildren(parentMediaId, loadOptions, false, callback);
+                } else {
+                    callback.onLoaded(new ArrayList<MediaBrowserCompat.MediaItem>());
+                }
+            }
+
+            @Override
+            public void onError() {
+                callback.onError();
+            }
+        });
     }
 
+    /**
+     * Loads children from the handler into the browse cache. Identical loads
+     * that are requested while one is in flight share its response, so that
+     * a browser that sends the same request several times in quick
+     * succession causes just one call to the handler. A prefetch is sent at
+     * a lower priority, until a browser requests the same children.
+     */
+    private void loadChildren(final String parentMediaId, final Bundle loadOptions, boolean prefetch, LoadCallback<List<MediaBrowserCompat.MediaItem>> callback) {
+        final String key = BrowseCache.keyOf(parentMediaId, loadOptions);
+        List<LoadCallback<List<MediaBrowserCompat.MediaItem>>> callbacks = pendingChildrenLoads.get(key);
+        if (callbacks != null) {
+            callbacks.add(callback);
+            sharedChildrenLoadCount++;
+            Integer prefetchRequestId = prefetch ? null : prefetchChildrenLoads.remove(key);
+            if (prefetchRequestId != null) {
+                listener.onBrowseRequestPrioritized(prefetchRequestId);
+            }
+            return;
+        }
+        callbacks = new ArrayList<>();
+        callbacks.add(callback);
+        pendingChildrenLoads.put(key, callbacks);
+        final long cacheGeneration = browseCache.getGeneration();
+        DeadlineLoad<List<MediaBrowserCompat.MediaItem>> load = new DeadlineLoad<List<MediaBrowserCompat.MediaItem>>("getChildren") {
+            @Override
+            public void onLoaded(List<MediaBrowserCompat.MediaItem> children) {
+                // Even a response after the deadline is worth caching for the
+                // next request.
+                browseCache.put(parentMediaId, loadOptions, children, cacheGeneration);
+                super.onLoaded(children);
+            }
+
+            @Override
+            void complete(List<MediaBrowserCompat.MediaItem> children) {
+                prefetchChildrenLoads.remove(key);
+                List<LoadCallback<List<MediaBrowserCompat.MediaItem>>> callbacks = pendingChildrenLoads.remove(key);
+                if (callbacks == null) return;
+                for (LoadCallback<List<MediaBrowserCompat.MediaItem>> callback : callbacks) {
+                    callback.onLoaded(children);
+                }
+            }
+
+            @Override
+            void fail() {
+                prefetchChildrenLoads.remove(key);
+                List<LoadCallback<List<MediaBrowserCompat.MediaItem>>> callbacks = pendingChildrenLoads.remove(key);
+                if (callbacks == null) return;
+                for (LoadCallback<List<MediaBrowserCompat.MediaItem>> callback : callbacks) {
+                    callback.onError();
+                }
+            }
+
+            @Override
+            List<MediaBrowserCompat.MediaItem> fallback() {
+                List<MediaBrowserCompat.MediaItem> staleChildren = browseCache.getStale(parentMediaId, loadOptions);
+                return staleChildren != null ? staleChildren : new ArrayList<MediaBrowserCompat.MediaItem>();
+            }
+        };
+        if (prefetch) prefetchChildrenLoads.put(key, load.requestId);
+        listener.onLoadChildren(parentMediaId, loadOptions, load.requestId, prefetch, load);
+    }
+
+    /**
+     * Loads the children of a parent into the browse cache in the background,
+     * and then the children of its browsable children down to the given
+     * depth, so that a browser that has just connected finds its first
+     * screens cached. Only the first MAX_PREFETCH_CHILDREN browsable children
+     * of each parent are followed to bound the number of calls made to the
+     * handler.
+     */
+    private void prefetchChildren(final String parentMediaId, final int depth) {
+        if (depth <= 0 || listener == null || !browseCache.isEnabled()) return;
+        if (browseCache.contains(parentMediaId, null)) return;
+        prefetchCount++;
+        loadChildren(parentMediaId, null, true, new LoadCallback<List<MediaBrowserCompat.MediaItem>>() {
+            @Override
+            public void onLoaded(List<MediaBrowserCompat.MediaItem> children) {
+                if (depth <= 1) return;
+                int followed = 0;
+                for (MediaBrowserCompat.MediaItem child : children) {
+                    if (followed == MAX_PREFETCH_CHILDREN) break;
+                    if (child.isBrowsable()) {
+                        prefetchChildren(child.getMediaId(), depth - 1);
+                        followed++;
+                    }
+                }
+            }
+
+            @Override
+            public void onError() {
+            }
+        });
+    }
+
+    /** Returns the number of children loads started by prefetching. */
+    int getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    /**
+     * Returns the number of children requests that were answered by sharing
+     * the response to an identical request in flight.
+     */
+    int getSharedChildrenLoadCount() {
+        return sharedChildrenLoadCount;
+    }
+
+    private int getRootChildrenLimit() {
+        MediaSessionManager.RemoteUserInfo browser = getCurrentBrowserInfo();
+        Integer limit = browser != null ? rootChildrenLimits.get(browser.getPackageName()) : null;
+        return limit != null ? limit : 0;
+    }
+
+    private static Bundle withoutPaging(Bundle options) {
+        Bundle loadOptions = new Bundle(options);
+        loadOptions.remove(MediaBrowserCompat.EXTRA_PAGE);
+        loadOptions.remove(MediaBrowserCompat.EXTRA_PAGE_SIZE);
+        return loadOptions;
+    }
+
+    /**
+     * Returns up to count items of a list starting at from, or all items
+     * from there if count is 0.
+     */
+    private static <T> List<T> subList(List<T> list, int from, int count) {
+        if (from == 0 && (count <= 0 || count >= list.size())) return list;
+        if (from >= list.size()) return new ArrayList<>();
+        int to = count > 0 ? Math.min(list.size(), from + count) : list.size();
+        return new ArrayList<>(list.subList(from, to));
+    }
+
+    /**
+     * Loads a media item, answering from the metadata cache if the item has
+     * been seen in the queue or a browse result. If
+     * androidRefreshCachedMediaItems is set, the handler is still asked for
+     * the item in the background to refresh the cache.
+     */
     @Override
-    public void onLoadItem(String itemId, Result<MediaBrowserCompat.MediaItem> result) {
+    public void onLoadItem(String itemId, final Result<MediaBrowserCompat.MediaItem> result) {
+        MediaBrowserCompat.MediaItem cachedItem = getCachedMediaItem(itemId);
+        if (cachedItem != null) {
+            result.sendResult(cachedItem);
+            if (listener != null && config.androidRefreshCachedMediaItems) {
+                listener.onLoadItem(itemId, ++lastBrowseRequestId, new LoadCallback<MediaBrowserCompat.MediaItem>() {
+                    @Override
+                    public void onLoaded(MediaBrowserCompat.MediaItem mediaItem) {
+                        // Converting the item has already updated the cache.
+                    }
+
+                    @Override
+                    public void onError() {
+                    }
+                });
+            }
+            return;
+        }
         if (listener == null) {
             result.sendResult(null);
             return;
         }
-        listener.onLoadItem(itemId, result);
+        result.detach();
+        DeadlineLoad<MediaBrowserCompat.MediaItem> load = new DeadlineLoad<MediaBrowserCompat.MediaItem>("getMediaItem") {
+            @Override
+            void complete(MediaBrowserCompat.MediaItem mediaItem) {
+                result.sendResult(mediaItem);
+            }
+
+            @Override
+            void fail() {
+                result.sendError(new Bundle());
+            }
+
+            @Override
+            MediaBrowserCompat.MediaItem fallback() {
+                return null;
+            }
+        };
+        listener.onLoadItem(itemId, load.requestId, load);
     }
 
+    /**
+     * Searches for media items, answering from the search index if it is
+     * enabled and any indexed items match. Otherwise, the handler is asked.
+     */
     @Override
-    public void onSearch(String query, Bundle extras, Result<List<MediaBrowserCompat.MediaItem>> result) {
+    public void onSearch(String query, Bundle extras, final Result<List<MediaBrowserCompat.MediaItem>> result) {
+        if (searchIndexEnabled) {
+            List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
+            for (String mediaId : searchIndex.search(query, MAX_SEARCH_RESULTS)) {
+                MediaBrowserCompat.MediaItem mediaItem = getCachedMediaItem(mediaId);
+                if (mediaItem != null) mediaItems.add(mediaItem);
+            }
+            if (!mediaItems.isEmpty()) {
+                result.sendResult(fitMediaItems(mediaItems));
+                return;
+            }
+        }
         if (listener == null) {
             result.sendResult(new ArrayList<>());
             return;
         }
-        listener.onSearch(query, extras, result);
+        result.detach();
+        DeadlineLoad<List<MediaBrowserCompat.MediaItem>> load = new DeadlineLoad<List<MediaBrowserCompat.MediaItem>>("search") {
+            @Override
+            void complete(List<MediaBrowserCompat.MediaItem> mediaItems) {
+                result.sendResult(fitMediaItems(mediaItems));
+            }
+
+            @Override
+            void fail() {
+                result.sendError(new Bundle());
+            }
+
+            @Override
+            List<MediaBrowserCompat.MediaItem> fallback() {
+                return new ArrayList<>();
+            }
+        };
+        listener.onSearch(query, extras, load.requestId, load);
+    }
+
+    /**
+     * Adds the media IDs of the indexed items that best match a query to the
+     * extras of a play or prepare from search, if the search index is
+     * enabled.
+     */
+    private Bundle withSearchCandidates(String query, Bundle extras) {
+        if (!searchIndexEnabled) return extras;
+        Bundle candidateExtras = extras != null ? new Bundle(extras) : new Bundle();
+        candidateExtras.putStringArrayList(EXTRA_SEARCH_CANDIDATES, new ArrayList<>(searchIndex.search(query, MAX_SEARCH_CANDIDATES)));
+        return candidateExtras;
+    }
+
+    /**
+     * Prints the latencies of the browse calls made to the handler along with
+     * the browse cache, payload guard and search index counters, for
+     * {@code adb shell dumpsys activity service AudioService}.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        for (String method : BROWSE_METHODS) {
+            writer.println(method + " latency: " + browseLatencies.get(method));
+        }
+        writer.println(browseCache);
+        writer.println(payloadGuard);
+        writer.println(searchIndex);
+    }
+
+    /**
+     * Fails the browse requests awaiting a response from the handler, for
+     * when the handler is detached and their responses will never arrive.
+     * Otherwise, later identical requests would join a load that never
+     * completes.
+     */
+    void failPendingLoads() {
+        for (DeadlineLoad<?> load : new ArrayList<>(pendingLoads.values())) {
+            load.onError();
+        }
+    }
+
+    /**
+     * A load from the handler that is completed at most once: with the
+     * handler's response, or with a fallback if the androidBrowseRequestTimeout
+     * passes first. In the latter case, the handler is told that the request
+     * timed out so that it can stop working on it.
+     * <p>
+     * This must only be used from the main thread.
+     */
+    private abstract class DeadlineLoad<T> implements LoadCallback<T>, Runnable {
+        final int requestId = ++lastBrowseRequestId;
+        private final LatencyRecorder latency;
+        private final long startTime = SystemClock.elapsedRealtime();
+        private boolean done;
+
+        DeadlineLoad(String method) {
+            latency = browseLatencies.get(method);
+            pendingLoads.put(requestId, this);
+            if (config.androidBrowseRequestTimeout > 0) {
+                handler.postDelayed(this, config.androidBrowseRequestTimeout);
+            }
+        }
+
+        abstract void complete(T value);
+
+        abstract void fail();
+
+        abstract T fallback();
+
+        @Override
+        public void onLoaded(T value) {
+            if (finish()) complete(value);
+        }
+
+        @Override
+        public void onError() {
+            if (finish()) fail();
+        }
+
+        @Override
+        public void run() {
+            if (done) return;
+            done = true;
+            pendingLoads.remove(requestId);
+            latency.recordTimeout(SystemClock.elapsedRealtime() - startTime);
+            complete(fallback());
+            if (listener != null) {
+                listener.onBrowseRequestTimedOut(requestId);
+            }
+        }
+
+        /** Abandons the load without completing it. */
+        void cancel() {
+            done = true;
+            handler.removeCallbacks(this);
+        }
+
+        private boolean finish() {
+            if (done) return false;
+            done = true;
+            pendingLoads.remove(requestId);
+            handler.removeCallbacks(this);
+            latency.record(SystemClock.elapsedRealtime() - startTime);
+            return true;
+        }
     }
 
     @Override
@@ -916,7 +1778,7 @@ public class AudioService extends MediaBrowserServiceCompat {
             if (listener == null) return;
             if (!mediaSession.isActive())
                 mediaSession.setActive(true);
-            listener.onPrepareFromSearch(query, extras);
+            listener.onPrepareFromSearch(query, withSearchCandidates(query, extras));
         }
 
         @Override
@@ -942,7 +1804,7 @@ public class AudioService extends MediaBrowserServiceCompat {
         @Override
         public void onPlayFromSearch(final String query, final Bundle extras) {
             if (listener == null) return;
-            listener.onPlayFromSearch(query, extras);
+            listener.onPlayFromSearch(query, withSearchCandidates(query, extras));
         }
 
         @Override
@@ -1118,11 +1980,29 @@ public class AudioService extends MediaBrowserServiceCompat {
         }
     }
 
+    private static class ControlTemplate {
+        final NotificationCompat.Action action;
+        final PlaybackStateCompat.CustomAction customAction;
+
+        ControlTemplate(NotificationCompat.Action action, PlaybackStateCompat.CustomAction customAction) {
+            this.action = action;
+            this.customAction = customAction;
+        }
+    }
+
+    /** Receives the result of a load made through the {@link ServiceListener}. */
+    public interface LoadCallback<T> {
+        void onLoaded(T value);
+        void onError();
+    }
+
     public interface ServiceListener {
         //BrowserRoot onGetRoot(String clientPackageName, int clientUid, Bundle rootHints);
-        void onLoadChildren(String parentMediaId, Result<List<MediaBrowserCompat.MediaItem>> result, Bundle options);
-        void onLoadItem(String itemId, Result<MediaBrowserCompat.MediaItem> result);
-        void onSearch(String query, Bundle extras, Result<List<MediaBrowserCompat.MediaItem>> result);
+        void onLoadChildren(String parentMediaId, Bundle options, int requestId, boolean prefetch, LoadCallback<List<MediaBrowserCompat.MediaItem>> callback);
+        void onLoadItem(String itemId, int requestId, LoadCallback<MediaBrowserCompat.MediaItem> callback);
+        void onSearch(String query, Bundle extras, int requestId, LoadCallback<List<MediaBrowserCompat.MediaItem>> callback);
+        void onBrowseRequestTimedOut(int requestId);
+        void onBrowseRequestPrioritized(int requestId);
         void onClick(MediaButton mediaButton);
         void onPrepare();
         void onPrepareFromMediaId(String mediaId, Bundle extras);
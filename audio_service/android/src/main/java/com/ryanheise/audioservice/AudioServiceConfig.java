@@ -23,6 +23,16 @@ public class AudioServiceConfig {
     private static final String KEY_ART_DOWNSCALE_HEIGHT = "artDownscaleHeight";
     private static final String KEY_ACTIVITY_CLASS_NAME = "activityClassName";
     private static final String KEY_BROWSABLE_ROOT_EXTRAS = "androidBrowsableRootExtras";
+    private static final String KEY_ANDROID_QUEUE_WINDOW_RADIUS = "androidQueueWindowRadius";
+    private static final String KEY_ANDROID_BINDER_PAYLOAD_BUDGET = "androidBinderPayloadBudget";
+    private static final String KEY_ANDROID_BROWSE_CACHE_TTL = "androidBrowseCacheTtl";
+    private static final String KEY_ANDROID_HANDLES_BROWSE_PAGING = "androidHandlesBrowsePaging";
+    private static final String KEY_ANDROID_REFRESH_CACHED_MEDIA_ITEMS = "androidRefreshCachedMediaItems";
+    private static final String KEY_ANDROID_MAX_CONCURRENT_BROWSE_REQUESTS = "androidMaxConcurrentBrowseRequests";
+    private static final String KEY_ANDROID_BROWSE_REQUEST_TIMEOUT = "androidBrowseRequestTimeout";
+    private static final String KEY_ANDROID_BROWSE_PREFETCH_DEPTH = "androidBrowsePrefetchDepth";
+    private static final String KEY_ANDROID_BROWSE_CATALOG = "androidBrowseCatalog";
+    private static final String KEY_ANDROID_SEARCH_INDEX = "androidSearchIndex";
 
     private SharedPreferences preferences;
     public boolean androidResumeOnClick;
@@ -39,6 +49,16 @@ public class AudioServiceConfig {
     public int artDownscaleHeight;
     public String activityClassName;
     public String browsableRootExtras;
+    public int androidQueueWindowRadius;
+    public int androidBinderPayloadBudget;
+    public long androidBrowseCacheTtl;
+    public boolean androidHandlesBrowsePaging;
+    public boolean androidRefreshCachedMediaItems;
+    public int androidMaxConcurrentBrowseRequests;
+    public long androidBrowseRequestTimeout;
+    public int androidBrowsePrefetchDepth;
+    public boolean androidBrowseCatalog;
+    public boolean androidSearchIndex;
 
     public AudioServiceConfig(Context context) {
         preferences = context.getSharedPreferences(SHARED_PREFERENCES_NAME, Context.MODE_PRIVATE);
@@ -56,6 +76,16 @@ public class AudioServiceConfig {
         artDownscaleHeight = preferences.getInt(KEY_ART_DOWNSCALE_HEIGHT, -1);
         activityClassName = preferences.getString(KEY_ACTIVITY_CLASS_NAME, null);
         browsableRootExtras = preferences.getString(KEY_BROWSABLE_ROOT_EXTRAS, null);
+        androidQueueWindowRadius = preferences.getInt(KEY_ANDROID_QUEUE_WINDOW_RADIUS, 0);
+        androidBinderPayloadBudget = preferences.getInt(KEY_ANDROID_BINDER_PAYLOAD_BUDGET, 0);
+        androidBrowseCacheTtl = preferences.getLong(KEY_ANDROID_BROWSE_CACHE_TTL, 0);
+        androidHandlesBrowsePaging = preferences.getBoolean(KEY_ANDROID_HANDLES_BROWSE_PAGING, false);
+        androidRefreshCachedMediaItems = preferences.getBoolean(KEY_ANDROID_REFRESH_CACHED_MEDIA_ITEMS, false);
+        androidMaxConcurrentBrowseRequests = preferences.getInt(KEY_ANDROID_MAX_CONCURRENT_BROWSE_REQUESTS, 0);
+        androidBrowseRequestTimeout = preferences.getLong(KEY_ANDROID_BROWSE_REQUEST_TIMEOUT, 0);
+        androidBrowsePrefetchDepth = preferences.getInt(KEY_ANDROID_BROWSE_PREFETCH_DEPTH, 0);
+        androidBrowseCatalog = preferences.getBoolean(KEY_ANDROID_BROWSE_CATALOG, false);
+        androidSearchIndex = preferences.getBoolean(KEY_ANDROID_SEARCH_INDEX, false);
     }
 
     public void setBrowsableRootExtras(Map<?,?> map) {
@@ -115,6 +145,16 @@ public class AudioServiceConfig {
             .putInt(KEY_ART_DOWNSCALE_HEIGHT, artDownscaleHeight)
             .putString(KEY_ACTIVITY_CLASS_NAME, activityClassName)
             .putString(KEY_BROWSABLE_ROOT_EXTRAS, browsableRootExtras)
+            .putInt(KEY_ANDROID_QUEUE_WINDOW_RADIUS, androidQueueWindowRadius)
+            .putInt(KEY_ANDROID_BINDER_PAYLOAD_BUDGET, androidBinderPayloadBudget)
+            .putLong(KEY_ANDROID_BROWSE_CACHE_TTL, androidBrowseCacheTtl)
+            .putBoolean(KEY_ANDROID_HANDLES_BROWSE_PAGING, androidHandlesBrowsePaging)
+            .putBoolean(KEY_ANDROID_REFRESH_CACHED_MEDIA_ITEMS, androidRefreshCachedMediaItems)
+            .putInt(KEY_ANDROID_MAX_CONCURRENT_BROWSE_REQUESTS, androidMaxConcurrentBrowseRequests)
+            .putLong(KEY_ANDROID_BROWSE_REQUEST_TIMEOUT, androidBrowseRequestTimeout)
+            .putInt(KEY_ANDROID_BROWSE_PREFETCH_DEPTH, androidBrowsePrefetchDepth)
+            .putBoolean(KEY_ANDROID_BROWSE_CATALOG, androidBrowseCatalog)
+            .putBoolean(KEY_ANDROID_SEARCH_INDEX, androidSearchIndex)
             .apply();
     }
 }
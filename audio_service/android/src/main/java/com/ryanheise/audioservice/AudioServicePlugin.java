@@ -13,7 +13,6 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.SystemClock;
 
-import androidx.annotation.UiThread;
 import androidx.core.app.NotificationCompat;
 
 import android.support.v4.media.MediaBrowserCompat;
@@ -30,10 +29,10 @@ import android.support.v4.media.session.PlaybackStateCompat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import io.flutter.embedding.android.FlutterActivity;
@@ -44,6 +43,7 @@ import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.MethodChannel.MethodCallHandler;
 import io.flutter.plugin.common.MethodChannel.Result;
+import io.flutter.plugin.common.StandardMethodCodec;
 import io.flutter.plugin.common.PluginRegistry.NewIntentListener;
 import io.flutter.plugin.common.BinaryMessenger;
 
@@ -120,6 +120,9 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
     private static final Set<ClientInterface> clientInterfaces = new HashSet<>();
     private static ClientInterface mainClientInterface;
     private static AudioHandlerInterface audioHandlerInterface;
+    // The descriptions of the last queue by media ID, only accessed on the
+    // worker thread.
+    private static Map<String, QueueEntry> queueEntries = new HashMap<>();
     private static final long bootTime;
     private static Result configureResult;
     private static boolean flutterReady;
@@ -128,6 +131,11 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
         bootTime = System.currentTimeMillis() - SystemClock.elapsedRealtime();
     }
 
+    /** Whether the app has configured the AudioHandler in the Flutter engine. */
+    static boolean isFlutterReady() {
+        return flutterReady;
+    }
+
     static AudioHandlerInterface audioHandlerInterface() throws Exception {
         if (audioHandlerInterface == null) throw new Exception("Background audio task not running");
         return audioHandlerInterface;
@@ -460,6 +468,16 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
                     config.artDownscaleWidth = configMap.get("artDownscaleWidth") != null ? (Integer)configMap.get("artDownscaleWidth") : -1;
                     config.artDownscaleHeight = configMap.get("artDownscaleHeight") != null ? (Integer)configMap.get("artDownscaleHeight") : -1;
                     config.setBrowsableRootExtras((Map<?,?>)configMap.get("androidBrowsableRootExtras"));
+                    config.androidQueueWindowRadius = configMap.get("androidQueueWindowRadius") != null ? (Integer)configMap.get("androidQueueWindowRadius") : 0;
+                    config.androidBinderPayloadBudget = configMap.get("androidBinderPayloadBudget") != null ? (Integer)configMap.get("androidBinderPayloadBudget") : 0;
+                    config.androidBrowseCacheTtl = configMap.get("androidBrowseCacheTtl") != null ? getLong(configMap.get("androidBrowseCacheTtl")) : 0;
+                    config.androidHandlesBrowsePaging = configMap.get("androidHandlesBrowsePaging") != null && (Boolean)configMap.get("androidHandlesBrowsePaging");
+                    config.androidRefreshCachedMediaItems = configMap.get("androidRefreshCachedMediaItems") != null && (Boolean)configMap.get("androidRefreshCachedMediaItems");
+                    config.androidMaxConcurrentBrowseRequests = configMap.get("androidMaxConcurrentBrowseRequests") != null ? (Integer)configMap.get("androidMaxConcurrentBrowseRequests") : 0;
+                    config.androidBrowseRequestTimeout = configMap.get("androidBrowseRequestTimeout") != null ? getLong(configMap.get("androidBrowseRequestTimeout")) : 0;
+                    config.androidBrowsePrefetchDepth = configMap.get("androidBrowsePrefetchDepth") != null ? (Integer)configMap.get("androidBrowsePrefetchDepth") : 0;
+                    config.androidBrowseCatalog = configMap.get("androidBrowseCatalog") != null && (Boolean)configMap.get("androidBrowseCatalog");
+                    config.androidSearchIndex = configMap.get("androidSearchIndex") != null && (Boolean)configMap.get("androidSearchIndex");
                     if (activity != null) {
                         config.activityClassName = activity.getClass().getName();
                     }
@@ -479,6 +497,9 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
                         }
                         audioHandlerInterface.invokePendingMethods();
                     }
+                    audioHandlerInterface.setMaxBrowseInFlight(config.androidMaxConcurrentBrowseRequests > 0
+                            ? config.androidMaxConcurrentBrowseRequests
+                            : OutboundDispatcher.DEFAULT_MAX_BROWSE_IN_FLIGHT);
                     if (mediaController != null) {
                         result.success(mapOf());
                     } else {
@@ -499,123 +520,176 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
         public MethodChannel channel;
         private AudioTrack silenceAudioTrack;
         private final Handler handler = new Handler(Looper.getMainLooper());
-        private List<MethodInvocation> methodInvocationQueue = new LinkedList<MethodInvocation>();
+        private final PendingMethodQueue methodInvocationQueue = new PendingMethodQueue(PendingMethodQueue.DEFAULT_CAPACITY);
+        // Applies state updates from Dart to the media session in the order
+        // they were sent, off the main thread.
+        private final ExecutorService worker = Executors.newSingleThreadExecutor();
+
+        /** A state update that is decoded off the main thread. */
+        private interface Update {
+            /** Decodes the update, returning the call that applies it. */
+            Runnable decode() throws Exception;
+        }
+        private final OutboundDispatcher dispatcher;
+        // Set on the main thread once the interface is destroyed and the
+        // silence track released.
+        private boolean destroyed;
+        // The results of the browse requests awaiting a response by request
+        // ID. Only accessed on the main thread.
+        private final Map<Integer, Result> browseResults = new HashMap<>();
+        // Parses the controls of state updates, only accessed on the worker.
+        private final ControlsDecoder controlsDecoder = new ControlsDecoder();
 
         public AudioHandlerInterface(BinaryMessenger messenger) {
             this.messenger = messenger;
-            channel = new MethodChannel(messenger, CHANNEL_HANDLER);
+            channel = createChannel(messenger);
             channel.setMethodCallHandler(this);
+            dispatcher = new OutboundDispatcher(channel, OutboundDispatcher.DEFAULT_MAX_BROWSE_IN_FLIGHT);
         }
 
         public void switchToMessenger(BinaryMessenger messenger) {
             channel.setMethodCallHandler(null);
             this.messenger = messenger;
-            channel = new MethodChannel(messenger, CHANNEL_HANDLER);
+            channel = createChannel(messenger);
             channel.setMethodCallHandler(this);
+            dispatcher.setChannel(channel);
+            browseResults.clear();
+            // Responses to requests sent to the previous engine won't arrive.
+            if (AudioService.instance != null) {
+                AudioService.instance.failPendingLoads();
+            }
+        }
+
+        // Incoming calls are decoded and dispatched on a background task queue
+        // so that queue and state traffic doesn't compete with the UI.
+        private static MethodChannel createChannel(BinaryMessenger messenger) {
+            BinaryMessenger.TaskQueue taskQueue = messenger.makeBackgroundTaskQueue();
+            return new MethodChannel(messenger, CHANNEL_HANDLER, StandardMethodCodec.INSTANCE, taskQueue);
+        }
+
+        public void setMaxBrowseInFlight(int maxBrowseInFlight) {
+            dispatcher.setMaxBrowseInFlight(maxBrowseInFlight);
         }
 
         public void invokePendingMethods() {
-            for (MethodInvocation mi : methodInvocationQueue) {
-                channel.invokeMethod(mi.method, mi.arg, mi.result);
+            for (MethodInvocation mi : methodInvocationQueue.drain()) {
+                dispatcher.dispatch(mi.lane, mi.method, mi.arg, mi.result, mi.invokeTime);
             }
-            methodInvocationQueue.clear();
         }
 
         @Override
-        public void onLoadChildren(final String parentMediaId, final MediaBrowserServiceCompat.Result<List<MediaBrowserCompat.MediaItem>> result, Bundle options) {
-            if (audioHandlerInterface != null) {
-                Map<String, Object> args = new HashMap<>();
-                args.put("parentMediaId", parentMediaId);
-                args.put("options", bundleToMap(options));
-                audioHandlerInterface.invokeMethod("getChildren", args, new MethodChannel.Result() {
-                    @Override
-                    public void error(String errorCode, String errorMessage, Object errorDetails) {
-                        result.sendError(new Bundle());
-                    }
+        public void onLoadChildren(String parentMediaId, Bundle options, int requestId, boolean prefetch, final AudioService.LoadCallback<List<MediaBrowserCompat.MediaItem>> callback) {
+            if (audioHandlerInterface == null) {
+                callback.onError();
+                return;
+            }
+            Map<String, Object> args = new HashMap<>();
+            args.put("parentMediaId", parentMediaId);
+            args.put("options", Extras.toMap(options, Extras.BROWSE_OPTION_TYPES));
+            args.put("requestId", requestId);
+            args.put("encodeResponse", true);
+            audioHandlerInterface.invokeBrowseMethod("getChildren", args, requestId, prefetch, new MethodChannel.Result() {
+                @Override
+                public void error(String errorCode, String errorMessage, Object errorDetails) {
+                    callback.onError();
+                }
 
-                    @Override
-                    public void notImplemented() {
-                        result.sendError(new Bundle());
-                    }
+                @Override
+                public void notImplemented() {
+                    callback.onError();
+                }
 
-                    @Override
-                    public void success(Object obj) {
-                        Map<?, ?> response = (Map<?, ?>)obj;
-                        @SuppressWarnings("unchecked") List<Map<?, ?>> rawMediaItems = (List<Map<?, ?>>)response.get("children");
-                        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
-                        for (Map<?, ?> rawMediaItem : rawMediaItems) {
-                            mediaItems.add(rawToMediaItem(rawMediaItem));
-                        }
-                        result.sendResult(mediaItems);
+                @Override
+                public void success(Object obj) {
+                    Map<?, ?> response = (Map<?, ?>)obj;
+                    byte[] encodedChildren = (byte[])response.get("encodedChildren");
+                    if (encodedChildren != null && AudioService.instance != null) {
+                        AudioService.instance.storeEncodedChildren(parentMediaId, options, encodedChildren);
                     }
-                });
-            }
-            result.detach();
+                    callback.onLoaded(response2mediaItems(response, "encodedChildren", "children"));
+                }
+            });
         }
 
         @Override
-        public void onLoadItem(String itemId, final MediaBrowserServiceCompat.Result<MediaBrowserCompat.MediaItem> result) {
-            if (audioHandlerInterface != null) {
-                Map<String, Object> args = new HashMap<>();
-                args.put("mediaId", itemId);
-
-                audioHandlerInterface.invokeMethod("getMediaItem", args, new MethodChannel.Result() {
-                    @Override
-                    public void error(String errorCode, String errorMessage, Object errorDetails) {
-                        result.sendError(new Bundle());
-                    }
+        public void onLoadItem(String itemId, int requestId, final AudioService.LoadCallback<MediaBrowserCompat.MediaItem> callback) {
+            if (audioHandlerInterface == null) {
+                callback.onError();
+                return;
+            }
+            Map<String, Object> args = new HashMap<>();
+            args.put("mediaId", itemId);
+            args.put("requestId", requestId);
+            audioHandlerInterface.invokeBrowseMethod("getMediaItem", args, requestId, false, new MethodChannel.Result() {
+                @Override
+                public void error(String errorCode, String errorMessage, Object errorDetails) {
+                    callback.onError();
+                }
 
-                    @Override
-                    public void notImplemented() {
-                        result.sendError(new Bundle());
-                    }
+                @Override
+                public void notImplemented() {
+                    callback.onError();
+                }
 
-                    @Override
-                    public void success(Object obj) {
-                        Map<?, ?> response = (Map<?, ?>)obj;
-                        Map<?, ?> rawMediaItem = (Map<?, ?>)response.get("mediaItem");
-                        if (rawMediaItem != null) {
-                            MediaBrowserCompat.MediaItem mediaItem = rawToMediaItem(rawMediaItem);
-                            result.sendResult(mediaItem);
-                        } else {
-                            result.sendResult(null);
-                        }
-                    }
-                });
-            }
-            result.detach();
+                @Override
+                public void success(Object obj) {
+                    Map<?, ?> response = (Map<?, ?>)obj;
+                    Map<?, ?> rawMediaItem = (Map<?, ?>)response.get("mediaItem");
+                    callback.onLoaded(rawMediaItem != null ? rawToMediaItem(rawMediaItem) : null);
+                }
+            });
         }
 
         @Override
-        public void onSearch(String query, Bundle extras, final MediaBrowserServiceCompat.Result<List<MediaBrowserCompat.MediaItem>> result) {
-            if (audioHandlerInterface != null) {
-                Map<String, Object> args = new HashMap<>();
-                args.put("query", query);
-                args.put("extras", bundleToMap(extras));
-                audioHandlerInterface.invokeMethod("search", args, new MethodChannel.Result() {
-                    @Override
-                    public void error(String errorCode, String errorMessage, Object errorDetails) {
-                        result.sendError(new Bundle());
-                    }
+        public void onSearch(String query, Bundle extras, int requestId, final AudioService.LoadCallback<List<MediaBrowserCompat.MediaItem>> callback) {
+            if (audioHandlerInterface == null) {
+                callback.onError();
+                return;
+            }
+            Map<String, Object> args = new HashMap<>();
+            args.put("query", query);
+            args.put("extras", Extras.toMap(extras, Extras.SEARCH_EXTRA_TYPES));
+            args.put("requestId", requestId);
+            args.put("encodeResponse", true);
+            audioHandlerInterface.invokeBrowseMethod("search", args, requestId, false, new MethodChannel.Result() {
+                @Override
+                public void error(String errorCode, String errorMessage, Object errorDetails) {
+                    callback.onError();
+                }
 
-                    @Override
-                    public void notImplemented() {
-                        result.sendError(new Bundle());
-                    }
+                @Override
+                public void notImplemented() {
+                    callback.onError();
+                }
 
-                    @Override
-                    public void success(Object obj) {
-                        Map<?, ?> response = (Map<?, ?>)obj;
-                        @SuppressWarnings("unchecked") List<Map<?, ?>> rawMediaItems = (List<Map<?, ?>>)response.get("mediaItems");
-                        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
-                        for (Map<?, ?> rawMediaItem : rawMediaItems) {
-                            mediaItems.add(rawToMediaItem(rawMediaItem));
-                        }
-                        result.sendResult(mediaItems);
-                    }
-                });
+                @Override
+                public void success(Object obj) {
+                    Map<?, ?> response = (Map<?, ?>)obj;
+                    callback.onLoaded(response2mediaItems(response, "encodedMediaItems", "mediaItems"));
+                }
+            });
+        }
+
+        /**
+         * Cancels a timed out browse request that is still waiting to be sent.
+         * Only if it was already sent is the handler told that it timed out,
+         * which then reaches the handler after the request itself.
+         */
+        @Override
+        public void onBrowseRequestTimedOut(int requestId) {
+            Result result = browseResults.remove(requestId);
+            if (result == null) return;
+            if (dispatcher.cancel(result) || methodInvocationQueue.remove(result)) return;
+            invokeMethod("browseRequestTimedOut", mapOf("requestId", requestId));
+        }
+
+        @Override
+        public void onBrowseRequestPrioritized(int requestId) {
+            Result result = browseResults.get(requestId);
+            if (result == null) return;
+            if (!dispatcher.prioritize(result)) {
+                methodInvocationQueue.prioritize(result);
             }
-            result.detach();
         }
 
         @Override
@@ -637,21 +711,21 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
         public void onPrepareFromMediaId(String mediaId, Bundle extras) {
             invokeMethod("prepareFromMediaId", mapOf(
                         "mediaId", mediaId,
-                        "extras", bundleToMap(extras)));
+                        "extras", Extras.toMap(extras)));
         }
 
         @Override
         public void onPrepareFromSearch(String query, Bundle extras) {
             invokeMethod("prepareFromSearch", mapOf(
                         "query", query,
-                        "extras", bundleToMap(extras)));
+                        "extras", Extras.toMap(extras, Extras.SEARCH_EXTRA_TYPES)));
         }
 
         @Override
         public void onPrepareFromUri(Uri uri, Bundle extras) {
             invokeMethod("prepareFromUri", mapOf(
                         "uri", uri.toString(),
-                        "extras", bundleToMap(extras)));
+                        "extras", Extras.toMap(extras)));
         }
 
         @Override
@@ -663,21 +737,21 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
         public void onPlayFromMediaId(String mediaId, Bundle extras) {
             invokeMethod("playFromMediaId", mapOf(
                         "mediaId", mediaId,
-                        "extras", bundleToMap(extras)));
+                        "extras", Extras.toMap(extras)));
         }
 
         @Override
         public void onPlayFromSearch(String query, Bundle extras) {
             invokeMethod("playFromSearch", mapOf(
                         "query", query,
-                        "extras", bundleToMap(extras)));
+                        "extras", Extras.toMap(extras, Extras.SEARCH_EXTRA_TYPES)));
         }
 
         @Override
         public void onPlayFromUri(Uri uri, Bundle extras) {
             invokeMethod("playFromUri", mapOf(
                         "uri", uri.toString(),
-                        "extras", bundleToMap(extras)));
+                        "extras", Extras.toMap(extras)));
         }
 
         @Override
@@ -764,9 +838,10 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
 
         @Override
         public void onCustomAction(String action, Bundle extras) {
+            Map<String, Integer> extrasTypes = AudioService.instance != null ? AudioService.instance.getCustomActionExtrasTypes(action) : null;
             invokeMethod("customAction", mapOf(
                         "name", action,
-                        "extras", bundleToMap(extras)));
+                        "extras", Extras.toMap(extras, extrasTypes)));
         }
 
         @Override
@@ -780,7 +855,7 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
         public void onSetRating(RatingCompat rating, Bundle extras) {
             invokeMethod("setRating", mapOf(
                         "rating", rating2raw(rating),
-                        "extras", bundleToMap(extras)));
+                        "extras", Extras.toMap(extras)));
         }
 
         @Override
@@ -813,183 +888,269 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
             Map<?, ?> args = (Map<?, ?>)call.arguments;
             switch (call.method) {
             case "setMediaItem": {
-                Executors.newSingleThreadExecutor().execute(() -> {
-                    try {
-                        Map<?, ?> rawMediaItem = (Map<?, ?>)args.get("mediaItem");
-                        MediaMetadataCompat mediaMetadata = createMediaMetadata(rawMediaItem);
-                        AudioService.instance.setMetadata(mediaMetadata);
-                        handler.post(() -> result.success(null));
-                    } catch (Exception e) {
-                        handler.post(() -> {
-                            result.error("UNEXPECTED_ERROR", "Unexpected error", Log.getStackTraceString(e));
-                        });
-                    }
+                execute(result, () -> {
+                    Map<?, ?> rawMediaItem = (Map<?, ?>)args.get("mediaItem");
+                    AudioService.pinNowPlayingMetadata((String)rawMediaItem.get("id"));
+                    MediaMetadataCompat mediaMetadata = createMediaMetadata(rawMediaItem);
+                    return () -> AudioService.instance.setMetadata(mediaMetadata);
                 });
                 break;
             }
             case "setQueue": {
-                Executors.newSingleThreadExecutor().execute(() -> {
-                    try {
-                        @SuppressWarnings("unchecked") List<Map<?, ?>> rawQueue = (List<Map<?, ?>>) args.get("queue");
-                        List<MediaSessionCompat.QueueItem> queue = raw2queue(rawQueue);
-                        AudioService.instance.setQueue(queue);
-                        handler.post(() -> result.success(null));
-                    } catch (Exception e) {
-                        handler.post(() -> {
-                            result.error("UNEXPECTED_ERROR", "Unexpected error", Log.getStackTraceString(e));
-                        });
-                    }
+                execute(result, () -> {
+                    List<MediaSessionCompat.QueueItem> queue = args2queue(args);
+                    return () -> AudioService.instance.setQueue(queue);
                 });
                 break;
             }
             case "setState": {
-                Map<?, ?> stateMap = (Map<?, ?>)args.get("state");
-                AudioProcessingState processingState = AudioProcessingState.values()[(Integer)stateMap.get("processingState")];
-                boolean playing = (Boolean)stateMap.get("playing");
-                @SuppressWarnings("unchecked") List<Map<?, ?>> rawControls = (List<Map<?, ?>>)stateMap.get("controls");
-                @SuppressWarnings("unchecked") List<Object> compactActionIndexList = (List<Object>)stateMap.get("androidCompactActionIndices");
-                @SuppressWarnings("unchecked") List<Integer> rawSystemActions = (List<Integer>)stateMap.get("systemActions");
-                long position = getLong(stateMap.get("updatePosition"));
-                long bufferedPosition = getLong(stateMap.get("bufferedPosition"));
-                float speed = (float)((double)((Double)stateMap.get("speed")));
-                long updateTimeSinceEpoch = stateMap.get("updateTime") == null ? System.currentTimeMillis() : getLong(stateMap.get("updateTime"));
-                Integer errorCode = (Integer)stateMap.get("errorCode");
-                String errorMessage = (String)stateMap.get("errorMessage");
-                int repeatMode = (Integer)stateMap.get("repeatMode");
-                int shuffleMode = (Integer)stateMap.get("shuffleMode");
-                Long queueIndex = getLong(stateMap.get("queueIndex"));
-                boolean captioningEnabled = (Boolean)stateMap.get("captioningEnabled");
-
-                // On the flutter side, we represent the update time relative to the epoch.
-                // On the native side, we must represent the update time relative to the boot time.
-                long updateTimeSinceBoot = updateTimeSinceEpoch - bootTime;
-
-                List<MediaControl> actions = new ArrayList<>();
-                long actionBits = 0;
-                for (Map<?, ?> rawControl : rawControls) {
-                    String resource = (String)rawControl.get("androidIcon");
-                    String label = (String)rawControl.get("label");
-                    long actionCode = 1 << ((Integer)rawControl.get("action"));
-                    actionBits |= actionCode;
-                    Map<?, ?> customActionMap = (Map<?, ?>)rawControl.get("customAction");
-                    CustomMediaAction customAction = null;
-                    if (customActionMap != null) {
-                        String name = (String) customActionMap.get("name");
-                        Map<?, ?> extras = (Map<?, ?>) customActionMap.get("extras");
-                        customAction = new CustomMediaAction(name, extras);
+                execute(result, () -> {
+                    Map<?, ?> stateMap = (Map<?, ?>)args.get("state");
+                    return decodeState(stateMap);
+                });
+                break;
+            }
+            case "applyBatch": {
+                execute(result, () -> {
+                    // Like stopService, a batch for a service that isn't
+                    // running is ignored.
+                    if (AudioService.instance == null) return () -> {};
+                    Map<?, ?> rawMediaItem = (Map<?, ?>)args.get("mediaItem");
+                    Map<?, ?> stateMap = (Map<?, ?>)args.get("state");
+                    MediaMetadataCompat mediaMetadata = null;
+                    if (rawMediaItem != null) {
+                        AudioService.pinNowPlayingMetadata((String)rawMediaItem.get("id"));
+                        mediaMetadata = createMediaMetadata(rawMediaItem);
                     }
-                    actions.add(new MediaControl(resource, label, actionCode, customAction));
-                }
-                for (Integer rawSystemAction : rawSystemActions) {
-                    long actionCode = 1 << rawSystemAction;
-                    actionBits |= actionCode;
-                }
-                int[] compactActionIndices = null;
-                if (compactActionIndexList != null) {
-                    compactActionIndices = new int[Math.min(AudioService.MAX_COMPACT_ACTIONS, compactActionIndexList.size())];
-                    for (int i = 0; i < compactActionIndices.length; i++)
-                        compactActionIndices[i] = (Integer)compactActionIndexList.get(i);
-                }
-                AudioService.instance.setState(
-                        actions,
-                        actionBits,
-                        compactActionIndices,
-                        processingState,
-                        playing,
-                        position,
-                        bufferedPosition,
-                        speed,
-                        updateTimeSinceBoot,
-                        errorCode,
-                        errorMessage,
-                        repeatMode,
-                        shuffleMode,
-                        captioningEnabled,
-                        queueIndex);
-                result.success(null);
+                    List<MediaSessionCompat.QueueItem> queue = args2queue(args);
+                    Runnable setState = stateMap != null ? decodeState(stateMap) : null;
+                    final MediaMetadataCompat batchMetadata = mediaMetadata;
+                    return () -> {
+                        AudioService service = AudioService.instance;
+                        if (service == null) return;
+                        service.beginBatch();
+                        try {
+                            if (batchMetadata != null) service.setMetadata(batchMetadata);
+                            if (queue != null) service.setQueue(queue);
+                            if (setState != null) setState.run();
+                        } finally {
+                            service.endBatch();
+                        }
+                    };
+                });
                 break;
             }
             case "setAndroidPlaybackInfo": {
-                Map<?, ?> playbackInfo = (Map<?, ?>)args.get("playbackInfo");
-                final int playbackType = (Integer)playbackInfo.get("playbackType");
-                final Integer volumeControlType = (Integer)playbackInfo.get("volumeControlType");
-                final Integer maxVolume = (Integer)playbackInfo.get("maxVolume");
-                final Integer volume = (Integer)playbackInfo.get("volume");
-                AudioService.instance.setPlaybackInfo(playbackType, volumeControlType, maxVolume, volume);
-                result.success(null);
+                execute(result, () -> {
+                    Map<?, ?> playbackInfo = (Map<?, ?>)args.get("playbackInfo");
+                    final int playbackType = (Integer)playbackInfo.get("playbackType");
+                    final Integer volumeControlType = (Integer)playbackInfo.get("volumeControlType");
+                    final Integer maxVolume = (Integer)playbackInfo.get("maxVolume");
+                    final Integer volume = (Integer)playbackInfo.get("volume");
+                    return () -> AudioService.instance.setPlaybackInfo(playbackType, volumeControlType, maxVolume, volume);
+                });
                 break;
             }
             case "notifyChildrenChanged": {
-                String parentMediaId = (String)args.get("parentMediaId");
-                Map<?, ?> options = (Map<?, ?>)args.get("options");
-                AudioService.instance.notifyChildrenChanged(parentMediaId, mapToBundle(options));
-                result.success(null);
+                execute(result, () -> {
+                    String parentMediaId = (String)args.get("parentMediaId");
+                    Bundle options = Extras.toBundle((Map<?, ?>)args.get("options"));
+                    return () -> AudioService.instance.invalidateChildren(parentMediaId, options);
+                });
                 break;
             }
             case "androidForceEnableMediaButtons": {
-                // Just play a short amount of silence. This convinces Android
-                // that we are playing "real" audio so that it will route
-                // media buttons to us.
-                // See: https://issuetracker.google.com/issues/65344811
-                if (silenceAudioTrack == null) {
-                    byte[] silence = new byte[2048];
-                    // TODO: Uncomment this after moving to a minSdkVersion of 21.
-                    /* AudioAttributes audioAttributes = new AudioAttributes.Builder() */
-                    /*     .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC) */
-                    /*     .setUsage(AudioAttributes.USAGE_MEDIA) */
-                    /*     .build(); */
-                    /* AudioFormat audioFormat = new AudioFormat.Builder() */
-                    /*     .setChannelMask(AudioFormat.CHANNEL_CONFIGURATION_MONO) */
-                    /*     .setEncoding(AudioFormat.ENCODING_PCM_8BIT) */
-                    /*     .setSampleRate(SILENCE_SAMPLE_RATE) */
-                    /*     .build(); */
-                    /* silenceAudioTrack = new AudioTrack.Builder() */
-                    /*     .setAudioAttributes(audioAttributes) */
-                    /*     .setAudioFormat(audioFormat) */
-                    /*     .setBufferSizeInBytes(silence.length) */
-                    /*     .setTransferMode(AudioTrack.MODE_STATIC) */
-                    /*     .build(); */
-                    @SuppressWarnings("deprecation")
-                    final AudioTrack audioTrack = new AudioTrack(
-                            AudioManager.STREAM_MUSIC,
-                            SILENCE_SAMPLE_RATE,
-                            AudioFormat.CHANNEL_CONFIGURATION_MONO,
-                            AudioFormat.ENCODING_PCM_8BIT,
-                            silence.length,
-                            AudioTrack.MODE_STATIC);
-                    silenceAudioTrack = audioTrack;
-                    silenceAudioTrack.write(silence, 0, silence.length);
-                }
-                silenceAudioTrack.reloadStaticData();
-                silenceAudioTrack.play();
-                result.success(null);
+                // The track is only touched on the main thread, after any
+                // updates sent before this call.
+                execute(result, () -> () -> {
+                    if (destroyed) return;
+                    // Just play a short amount of silence. This convinces Android
+                    // that we are playing "real" audio so that it will route
+                    // media buttons to us.
+                    // See: https://issuetracker.google.com/issues/65344811
+                    if (silenceAudioTrack == null) {
+                        byte[] silence = new byte[2048];
+                        // TODO: Uncomment this after moving to a minSdkVersion of 21.
+                        /* AudioAttributes audioAttributes = new AudioAttributes.Builder() */
+                        /*     .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC) */
+                        /*     .setUsage(AudioAttributes.USAGE_MEDIA) */
+                        /*     .build(); */
+                        /* AudioFormat audioFormat = new AudioFormat.Builder() */
+                        /*     .setChannelMask(AudioFormat.CHANNEL_CONFIGURATION_MONO) */
+                        /*     .setEncoding(AudioFormat.ENCODING_PCM_8BIT) */
+                        /*     .setSampleRate(SILENCE_SAMPLE_RATE) */
+                        /*     .build(); */
+                        /* silenceAudioTrack = new AudioTrack.Builder() */
+                        /*     .setAudioAttributes(audioAttributes) */
+                        /*     .setAudioFormat(audioFormat) */
+                        /*     .setBufferSizeInBytes(silence.length) */
+                        /*     .setTransferMode(AudioTrack.MODE_STATIC) */
+                        /*     .build(); */
+                        @SuppressWarnings("deprecation")
+                        final AudioTrack audioTrack = new AudioTrack(
+                                AudioManager.STREAM_MUSIC,
+                                SILENCE_SAMPLE_RATE,
+                                AudioFormat.CHANNEL_CONFIGURATION_MONO,
+                                AudioFormat.ENCODING_PCM_8BIT,
+                                silence.length,
+                                AudioTrack.MODE_STATIC);
+                        silenceAudioTrack = audioTrack;
+                        silenceAudioTrack.write(silence, 0, silence.length);
+                    }
+                    silenceAudioTrack.reloadStaticData();
+                    silenceAudioTrack.play();
+                });
                 break;
             }
             case "stopService": {
-                if (AudioService.instance != null) {
-                    AudioService.instance.stop();
-                }
-                result.success(null);
+                // Stopping destroys the session, so it must not overtake
+                // updates that are still being decoded.
+                execute(result, () -> () -> {
+                    if (AudioService.instance != null) {
+                        AudioService.instance.stop();
+                    }
+                });
                 break;
             }
             }
         }
 
-        @UiThread
+        /**
+         * Decodes a native state update on the worker thread after any
+         * updates already submitted, then applies it to the service on the
+         * main thread, where the service is created and destroyed, and
+         * replies to Dart.
+         */
+        private void execute(final Result result, final Update update) {
+            worker.execute(() -> {
+                final Runnable apply;
+                try {
+                    apply = update.decode();
+                } catch (Exception e) {
+                    handler.post(() -> replyError(result, e));
+                    return;
+                }
+                handler.post(() -> {
+                    try {
+                        apply.run();
+                        result.success(null);
+                    } catch (Exception e) {
+                        replyError(result, e);
+                    }
+                });
+            });
+        }
+
+        private void replyError(Result result, Exception e) {
+            result.error("UNEXPECTED_ERROR", "Unexpected error", Log.getStackTraceString(e));
+        }
+
+        /**
+         * Parses a state update on the worker thread, returning the call that
+         * applies it to the service.
+         */
+        private Runnable decodeState(Map<?, ?> stateMap) {
+            AudioProcessingState processingState = AudioProcessingState.values()[(Integer)stateMap.get("processingState")];
+            boolean playing = (Boolean)stateMap.get("playing");
+            @SuppressWarnings("unchecked") List<Map<?, ?>> rawControls = (List<Map<?, ?>>)stateMap.get("controls");
+            @SuppressWarnings("unchecked") List<Object> compactActionIndexList = (List<Object>)stateMap.get("androidCompactActionIndices");
+            @SuppressWarnings("unchecked") List<Integer> rawSystemActions = (List<Integer>)stateMap.get("systemActions");
+            long position = getLong(stateMap.get("updatePosition"));
+            long bufferedPosition = getLong(stateMap.get("bufferedPosition"));
+            float speed = (float)((double)((Double)stateMap.get("speed")));
+            long updateTimeSinceEpoch = stateMap.get("updateTime") == null ? System.currentTimeMillis() : getLong(stateMap.get("updateTime"));
+            Integer errorCode = (Integer)stateMap.get("errorCode");
+            String errorMessage = (String)stateMap.get("errorMessage");
+            int repeatMode = (Integer)stateMap.get("repeatMode");
+            int shuffleMode = (Integer)stateMap.get("shuffleMode");
+            Long queueIndex = getLong(stateMap.get("queueIndex"));
+            boolean captioningEnabled = (Boolean)stateMap.get("captioningEnabled");
+
+            // On the flutter side, we represent the update time relative to the epoch.
+            // On the native side, we must represent the update time relative to the boot time.
+            long updateTimeSinceBoot = updateTimeSinceEpoch - bootTime;
+
+            controlsDecoder.decode(rawControls, rawSystemActions, compactActionIndexList);
+            final List<MediaControl> controls = controlsDecoder.getControls();
+            final long actionBits = controlsDecoder.getActionBits();
+            final int[] compactActionIndices = controlsDecoder.getCompactActionIndices();
+            return () -> AudioService.instance.setState(
+                    controls,
+                    actionBits,
+                    compactActionIndices,
+                    processingState,
+                    playing,
+                    position,
+                    bufferedPosition,
+                    speed,
+                    updateTimeSinceBoot,
+                    errorCode,
+                    errorMessage,
+                    repeatMode,
+                    shuffleMode,
+                    captioningEnabled,
+                    queueIndex);
+        }
+
         public void invokeMethod(String method, Object arg) {
             invokeMethod(method, arg, null);
         }
 
-        @UiThread
         public void invokeMethod(String method, Object arg, final Result result) {
+            invokeMethod(OutboundDispatcher.laneOf(method), method, arg, result, SystemClock.uptimeMillis());
+        }
+
+        private void invokeMethod(OutboundDispatcher.Lane lane, String method, Object arg, final Result result, long invokeTime) {
+            if (Looper.myLooper() != Looper.getMainLooper()) {
+                handler.post(() -> invokeMethod(lane, method, arg, result, invokeTime));
+                return;
+            }
             if (flutterReady) {
-                channel.invokeMethod(method, arg, result);
+                dispatcher.dispatch(lane, method, arg, result, invokeTime);
             } else {
-                methodInvocationQueue.add(new MethodInvocation(method, arg, result));
+                methodInvocationQueue.add(new MethodInvocation(lane, method, arg, result, invokeTime));
             }
         }
 
+        /**
+         * Invokes a browse method, tracking its result by request ID until it
+         * is answered so that it can be cancelled if it times out. A prefetch
+         * is sent at a lower priority than requests from browsers.
+         */
+        private void invokeBrowseMethod(String method, Object arg, final int requestId, boolean prefetch, final Result result) {
+            Result trackedResult = new Result() {
+                @Override
+                public void success(Object obj) {
+                    browseResults.remove(requestId);
+                    result.success(obj);
+                }
+
+                @Override
+                public void error(String errorCode, String errorMessage, Object errorDetails) {
+                    browseResults.remove(requestId);
+                    result.error(errorCode, errorMessage, errorDetails);
+                }
+
+                @Override
+                public void notImplemented() {
+                    browseResults.remove(requestId);
+                    result.notImplemented();
+                }
+            };
+            browseResults.put(requestId, trackedResult);
+            invokeMethod(prefetch ? OutboundDispatcher.Lane.PREFETCH : OutboundDispatcher.Lane.BROWSE,
+                    method, arg, trackedResult, SystemClock.uptimeMillis());
+        }
+
         private void destroy() {
+            destroyed = true;
+            channel.setMethodCallHandler(null);
+            worker.shutdown();
+            dispatcher.cancelQueuedBrowseRequests();
+            browseResults.clear();
+            if (AudioService.instance != null) {
+                AudioService.instance.failPendingLoads();
+            }
             if (silenceAudioTrack != null)
                 silenceAudioTrack.release();
         }
@@ -999,8 +1160,8 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
         List<Map<?, ?>> rawMediaItems = new ArrayList<>();
         for (MediaBrowserCompat.MediaItem mediaItem : mediaItems) {
             MediaDescriptionCompat description = mediaItem.getDescription();
-            MediaMetadataCompat mediaMetadata = AudioService.getMediaMetadata(description.getMediaId());
-            rawMediaItems.add(mediaMetadata2raw(mediaMetadata));
+            MediaMetadataCache.Entry entry = AudioService.getMediaMetadataEntry(description.getMediaId());
+            rawMediaItems.add(entry != null ? mediaMetadata2raw(entry.metadata, entry.extras) : null);
         }
         return rawMediaItems;
     }
@@ -1010,16 +1171,18 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
         List<Map<?, ?>> rawQueue = new ArrayList<>();
         for (MediaSessionCompat.QueueItem queueItem : queue) {
             MediaDescriptionCompat description = queueItem.getDescription();
-            MediaMetadataCompat mediaMetadata = AudioService.getMediaMetadata(description.getMediaId());
-            rawQueue.add(mediaMetadata2raw(mediaMetadata));
+            MediaMetadataCache.Entry entry = AudioService.getMediaMetadataEntry(description.getMediaId());
+            rawQueue.add(entry != null ? mediaMetadata2raw(entry.metadata, entry.extras) : null);
         }
         return rawQueue;
     }
 
     private static RatingCompat raw2rating(Map<?, ?> raw) {
         if (raw == null) return null;
-        Integer type = (Integer)raw.get("type");
-        Object value = raw.get("value");
+        return createRating((Integer)raw.get("type"), raw.get("value"));
+    }
+
+    static RatingCompat createRating(int type, Object value) {
         if (value != null) {
             switch (type) {
             case RatingCompat.RATING_3_STARS:
@@ -1077,6 +1240,15 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
 
     private static Map<?, ?> mediaMetadata2raw(MediaMetadataCompat mediaMetadata) {
         if (mediaMetadata == null) return null;
+        MediaMetadataCache.Entry entry = AudioService.getMediaMetadataEntry(mediaMetadata.getDescription().getMediaId());
+        return mediaMetadata2raw(mediaMetadata, entry != null && entry.metadata == mediaMetadata ? entry.extras : null);
+    }
+
+    /**
+     * Converts media metadata into a media item for Dart, where
+     * {@code extras} are the extras the metadata was created from, if known.
+     */
+    private static Map<?, ?> mediaMetadata2raw(MediaMetadataCompat mediaMetadata, Map<?, ?> extras) {
         MediaDescriptionCompat description = mediaMetadata.getDescription();
         Map<String, Object> raw = new HashMap<>();
         raw.put("id", description.getMediaId());
@@ -1095,9 +1267,9 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
         if (mediaMetadata.containsKey(MediaMetadataCompat.METADATA_KEY_RATING)) {
             raw.put("rating", rating2raw(mediaMetadata.getRating(MediaMetadataCompat.METADATA_KEY_RATING)));
         }
-        Map<String, Object> extras = bundleToMap(mediaMetadata.getBundle());
-        if (extras.size() > 0) {
-            raw.put("extras", extras);
+        Map<String, Object> rawExtras = Extras.metadataToMap(mediaMetadata.getBundle(), extras);
+        if (rawExtras.size() > 0) {
+            raw.put("extras", rawExtras);
         }
         return raw;
     }
@@ -1121,16 +1293,36 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
         );
     }
 
+    private static MediaMetadataCompat createMediaMetadata(MediaItemCodec.Item item) {
+        return AudioService.instance.createMediaMetadata(
+                item.id,
+                item.title,
+                item.album,
+                item.artist,
+                item.genre,
+                item.duration,
+                item.artUri,
+                item.playable,
+                item.displayTitle,
+                item.displaySubtitle,
+                item.displayDescription,
+                item.rating,
+                item.extras
+        );
+    }
+
     /**
-     * Propagate mediaItem extras passed from dart to the description. By default, when creating
-     * a MediaMetadataCompat object, it doesn't propagate all the extras to the MediaDescription
-     * instance it holds.
+     * Creates the description of a media item, including the extras passed
+     * from dart. By default, when creating a MediaMetadataCompat object, it
+     * doesn't propagate all the extras to the MediaDescription instance it
+     * holds.
      *
-     * @param description original description object
+     * @param mediaMetadata the metadata of the media item
      * @param extras extras map coming from dart
      * @return description with added extras
      */
-    private static MediaDescriptionCompat addExtrasToMediaDescription(MediaDescriptionCompat description, Map<?, ?> extras) {
+    private static MediaDescriptionCompat createMediaDescription(MediaMetadataCompat mediaMetadata, Map<?, ?> extras) {
+        final MediaDescriptionCompat description = mediaMetadata.getDescription();
         if (extras == null || extras.isEmpty()) {
             return description;
         }
@@ -1138,7 +1330,7 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
         if (description.getExtras() != null) {
             extrasBundle.putAll(description.getExtras());
         }
-        extrasBundle.putAll(mapToBundle(extras));
+        extrasBundle.putAll(Extras.toBundle(extras));
         return new MediaDescriptionCompat.Builder()
                 .setTitle(description.getTitle())
                 .setSubtitle(description.getSubtitle())
@@ -1151,24 +1343,134 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
     }
 
     private static MediaBrowserCompat.MediaItem rawToMediaItem(Map<?, ?> rawMediaItem) {
-        MediaMetadataCompat mediaMetadata = createMediaMetadata(rawMediaItem);
-        final MediaDescriptionCompat description = addExtrasToMediaDescription(mediaMetadata.getDescription(), (Map<?, ?>)rawMediaItem.get("extras"));
-        final Boolean playable = (Boolean)rawMediaItem.get("playable");
+        return createMediaItem(createMediaMetadata(rawMediaItem), (Map<?, ?>)rawMediaItem.get("extras"));
+    }
+
+    private static MediaBrowserCompat.MediaItem itemToMediaItem(MediaItemCodec.Item item) {
+        return createMediaItem(createMediaMetadata(item), item.extras);
+    }
+
+    /**
+     * Creates a media item from its metadata and the extras passed from
+     * dart. The item is playable if the metadata says so, and otherwise
+     * browsable.
+     */
+    static MediaBrowserCompat.MediaItem createMediaItem(MediaMetadataCompat mediaMetadata, Map<?, ?> extras) {
+        final MediaDescriptionCompat description = createMediaDescription(mediaMetadata, extras);
+        final boolean playable = mediaMetadata.getLong("playable_long") != 0;
         return new MediaBrowserCompat.MediaItem(description, playable ? MediaBrowserCompat.MediaItem.FLAG_PLAYABLE : MediaBrowserCompat.MediaItem.FLAG_BROWSABLE);
     }
 
+    /** Decodes media items from the binary format of MediaItemCodec. */
+    static List<MediaBrowserCompat.MediaItem> decodeMediaItems(byte[] encoded) {
+        List<MediaItemCodec.Item> items = MediaItemCodec.decode(encoded);
+        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>(items.size());
+        for (MediaItemCodec.Item item : items) {
+            mediaItems.add(itemToMediaItem(item));
+        }
+        return mediaItems;
+    }
+
+    /**
+     * Converts a browse response to media items, decoding the items from the
+     * binary format if the response has them under encodedKey, or else from
+     * the list of maps under key.
+     */
+    private static List<MediaBrowserCompat.MediaItem> response2mediaItems(Map<?, ?> response, String encodedKey, String key) {
+        byte[] encoded = (byte[])response.get(encodedKey);
+        if (encoded != null) {
+            return decodeMediaItems(encoded);
+        }
+        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
+        @SuppressWarnings("unchecked") List<Map<?, ?>> rawMediaItems = (List<Map<?, ?>>)response.get(key);
+        for (Map<?, ?> rawMediaItem : rawMediaItems) {
+            mediaItems.add(rawToMediaItem(rawMediaItem));
+        }
+        return mediaItems;
+    }
+
+    /**
+     * Converts the queue in a setQueue or applyBatch call, decoding it from
+     * the binary format if the call has it under encodedQueue.
+     */
+    private static List<MediaSessionCompat.QueueItem> args2queue(Map<?, ?> args) {
+        byte[] encodedQueue = (byte[])args.get("encodedQueue");
+        if (encodedQueue != null) {
+            return items2queue(MediaItemCodec.decode(encodedQueue));
+        }
+        @SuppressWarnings("unchecked") List<Map<?, ?>> rawQueue = (List<Map<?, ?>>)args.get("queue");
+        return rawQueue != null ? raw2queue(rawQueue) : null;
+    }
+
+    private static List<MediaSessionCompat.QueueItem> items2queue(List<MediaItemCodec.Item> items) {
+        Set<String> mediaIds = new HashSet<>();
+        for (MediaItemCodec.Item item : items) {
+            mediaIds.add(item.id);
+        }
+        AudioService.pinQueueMetadata(mediaIds);
+        Map<String, QueueEntry> entries = new HashMap<>();
+        List<MediaSessionCompat.QueueItem> queue = new ArrayList<>(items.size());
+        int i = 0;
+        for (MediaItemCodec.Item item : items) {
+            QueueEntry entry = queueEntries.get(item.id);
+            if (entry == null || !entry.isFor(item.encoded)) {
+                MediaMetadataCompat mediaMetadata = createMediaMetadata(item);
+                entry = new QueueEntry(item.encoded, createMediaDescription(mediaMetadata, item.extras));
+            }
+            entries.put(item.id, entry);
+            queue.add(new MediaSessionCompat.QueueItem(entry.description, i));
+            i++;
+        }
+        queueEntries = entries;
+        return queue;
+    }
+
     private static List<MediaSessionCompat.QueueItem> raw2queue(List<Map<?, ?>> rawQueue) {
+        Set<String> mediaIds = new HashSet<>();
+        for (Map<?, ?> rawMediaItem : rawQueue) {
+            mediaIds.add((String)rawMediaItem.get("id"));
+        }
+        AudioService.pinQueueMetadata(mediaIds);
+        Map<String, QueueEntry> entries = new HashMap<>();
         List<MediaSessionCompat.QueueItem> queue = new ArrayList<>();
         int i = 0;
         for (Map<?, ?> rawMediaItem : rawQueue) {
-            MediaMetadataCompat mediaMetadata = createMediaMetadata(rawMediaItem);
-            MediaDescriptionCompat description = addExtrasToMediaDescription(mediaMetadata.getDescription(), (Map<?, ?>)rawMediaItem.get("extras"));
-            queue.add(new MediaSessionCompat.QueueItem(description, i));
+            String mediaId = (String)rawMediaItem.get("id");
+            QueueEntry entry = queueEntries.get(mediaId);
+            if (entry == null || !entry.isFor(rawMediaItem)) {
+                MediaMetadataCompat mediaMetadata = createMediaMetadata(rawMediaItem);
+                entry = new QueueEntry(rawMediaItem, createMediaDescription(mediaMetadata, (Map<?, ?>)rawMediaItem.get("extras")));
+            }
+            entries.put(mediaId, entry);
+            queue.add(new MediaSessionCompat.QueueItem(entry.description, i));
             i++;
         }
+        queueEntries = entries;
         return queue;
     }
 
+    /**
+     * The description built for an item of the last queue, along with the
+     * raw map or encoded bytes it was built from. An item that is resent
+     * with the same content reuses the description.
+     */
+    private static class QueueEntry {
+        final Object content;
+        final MediaDescriptionCompat description;
+
+        QueueEntry(Object content, MediaDescriptionCompat description) {
+            this.content = content;
+            this.description = description;
+        }
+
+        boolean isFor(Object content) {
+            // The metadata is still needed by the media session callbacks,
+            // so rebuild the entry if it is no longer cached.
+            return this.content.equals(content)
+                && AudioService.getMediaMetadata(description.getMediaId()) != null;
+        }
+    }
+
     public static Long getLong(Object o) {
         return (o == null || o instanceof Long) ? (Long)o : Long.valueOf((Integer) o);
     }
@@ -1177,35 +1479,6 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
         return (o == null || o instanceof Integer) ? (Integer)o : Integer.valueOf((int)((Long)o).longValue());
     }
 
-    static Map<String, Object> bundleToMap(Bundle bundle) {
-        if (bundle == null) return null;
-        Map<String, Object> map = new HashMap<>();
-        for (String key : bundle.keySet()) {
-            // TODO: use typesafe version once SDK 33 is released.
-            @SuppressWarnings("deprecation")
-            Object value = bundle.getSerializable(key);
-            if (value != null) {
-                map.put(key, value);
-            }
-        }
-        return map;
-    }
-
-    static Bundle mapToBundle(Map<?, ?> map) {
-        if (map == null) return null;
-        final Bundle bundle = new Bundle();
-        for (Object key : map.keySet()) {
-            String skey = (String)key;
-            Object value = map.get(skey);
-            if (value instanceof Integer) bundle.putInt(skey, (Integer)value);
-            else if (value instanceof Long) bundle.putLong(skey, (Long)value);
-            else if (value instanceof Double) bundle.putDouble(skey, (Double)value);
-            else if (value instanceof Boolean) bundle.putBoolean(skey, (Boolean)value);
-            else if (value instanceof String) bundle.putString(skey, (String)value);
-        }
-        return bundle;
-    }
-
     static Map<String, Object> mapOf(Object... args) {
         Map<String, Object> map = new HashMap<>();
         for (int i = 0; i < args.length; i += 2) {
@@ -1215,14 +1488,19 @@ public class AudioServicePlugin implements FlutterPlugin, ActivityAware {
     }
 
     static class MethodInvocation {
+        public final OutboundDispatcher.Lane lane;
         public final String method;
         public final Object arg;
         public final Result result;
+        // When the invocation was made, in SystemClock.uptimeMillis().
+        public final long invokeTime;
 
-        public MethodInvocation(String method, Object arg, Result result) {
+        public MethodInvocation(OutboundDispatcher.Lane lane, String method, Object arg, Result result, long invokeTime) {
+            this.lane = lane;
             this.method = method;
             this.arg = arg;
             this.result = result;
+            this.invokeTime = invokeTime;
         }
     }
 }
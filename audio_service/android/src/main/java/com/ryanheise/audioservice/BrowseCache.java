@@ -0,0 +1,170 @@
+package com.ryanheise.audioservice;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.v4.media.MediaBrowserCompat;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Caches the children loaded from the Dart audio handler, keyed by the
+ * parent media ID and the options of the request, so that browsers that
+ * reload the same node are served without a round trip to Dart.
+ * <p>
+ * Entries expire after a TTL, and the cache is bounded by the total number
+ * of items it holds. All entries for a parent are invalidated when the
+ * handler notifies that its children have changed. Since an invalidation
+ * may arrive while a request is in flight, a response is only cached if its
+ * parent has not been invalidated since the request was made, as identified
+ * by {@link #getGeneration()}. Invalidations of other parents don't affect
+ * it.
+ */
+class BrowseCache {
+    static final int DEFAULT_MAX_ITEMS = 5000;
+    private static final int MAX_INVALIDATIONS = 1000;
+
+    private final LruCache<String, Entry> entries;
+    private long ttl;
+    private long generation;
+    // The generation at which each parent was last invalidated. A parent
+    // evicted from here is treated as invalidated at the latest generation
+    // evicted, which can only reject a response that would have been kept.
+    private final LruCache<String, Long> invalidations = new LruCache<String, Long>(MAX_INVALIDATIONS) {
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Long oldValue, Long newValue) {
+            if (evicted) evictedGeneration = Math.max(evictedGeneration, oldValue);
+        }
+    };
+    private long evictedGeneration;
+    private long clearedGeneration;
+    private int hitCount;
+    private int missCount;
+    private int staleHitCount;
+
+    BrowseCache(int maxItems) {
+        entries = new LruCache<String, Entry>(maxItems) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.mediaItems.size() + 1;
+            }
+        };
+    }
+
+    /** Sets the TTL in milliseconds, or 0 to disable the cache. */
+    synchronized void setTtl(long ttl) {
+        this.ttl = ttl;
+        if (ttl <= 0) {
+            entries.evictAll();
+        }
+    }
+
+    synchronized boolean isEnabled() {
+        return ttl > 0;
+    }
+
+    synchronized long getGeneration() {
+        return generation;
+    }
+
+    /** Returns the cached children, or null if they are missing or expired. */
+    synchronized List<MediaBrowserCompat.MediaItem> get(String parentMediaId, Bundle options) {
+        if (ttl <= 0) return null;
+        Entry entry = entries.get(keyOf(parentMediaId, options));
+        if (entry == null || SystemClock.elapsedRealtime() - entry.time > ttl) {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        return entry.mediaItems;
+    }
+
+    /**
+     * Returns whether unexpired children are cached, without counting a hit
+     * or miss.
+     */
+    synchronized boolean contains(String parentMediaId, Bundle options) {
+        if (ttl <= 0) return false;
+        Entry entry = entries.get(keyOf(parentMediaId, options));
+        return entry != null && SystemClock.elapsedRealtime() - entry.time <= ttl;
+    }
+
+    /**
+     * Returns the cached children even if they have expired, or null if they
+     * are missing. This is for answering a request when the handler is too
+     * slow to load fresh children.
+     */
+    synchronized List<MediaBrowserCompat.MediaItem> getStale(String parentMediaId, Bundle options) {
+        Entry entry = entries.get(keyOf(parentMediaId, options));
+        if (entry == null) return null;
+        staleHitCount++;
+        return entry.mediaItems;
+    }
+
+    synchronized void put(String parentMediaId, Bundle options, List<MediaBrowserCompat.MediaItem> mediaItems, long requestGeneration) {
+        if (ttl <= 0 || getInvalidatedGeneration(parentMediaId) > requestGeneration) return;
+        entries.put(keyOf(parentMediaId, options), new Entry(parentMediaId, mediaItems));
+    }
+
+    synchronized void invalidate(String parentMediaId) {
+        generation++;
+        invalidations.put(parentMediaId, generation);
+        for (Map.Entry<String, Entry> e : entries.snapshot().entrySet()) {
+            if (e.getValue().parentMediaId.equals(parentMediaId)) {
+                entries.remove(e.getKey());
+            }
+        }
+    }
+
+    synchronized void clear() {
+        generation++;
+        clearedGeneration = generation;
+        invalidations.evictAll();
+        entries.evictAll();
+    }
+
+    private long getInvalidatedGeneration(String parentMediaId) {
+        Long invalidated = invalidations.get(parentMediaId);
+        return Math.max(invalidated != null ? invalidated : evictedGeneration, clearedGeneration);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BrowseCache[entries=" + entries.snapshot().size()
+            + ",items=" + entries.size()
+            + ",hits=" + hitCount
+            + ",misses=" + missCount
+            + ",staleHits=" + staleHitCount + "]";
+    }
+
+    /**
+     * Returns a key that is the same for equal options regardless of the
+     * order of their keys.
+     */
+    static String keyOf(String parentMediaId, Bundle options) {
+        if (options == null || options.isEmpty()) return parentMediaId;
+        List<String> keys = new ArrayList<>(options.keySet());
+        Collections.sort(keys);
+        StringBuilder sb = new StringBuilder(parentMediaId);
+        for (String key : keys) {
+            @SuppressWarnings("deprecation")
+            Object value = options.get(key);
+            sb.append('\u0000').append(key).append('=').append(value);
+        }
+        return sb.toString();
+    }
+
+    private static class Entry {
+        final String parentMediaId;
+        final List<MediaBrowserCompat.MediaItem> mediaItems;
+        final long time = SystemClock.elapsedRealtime();
+
+        Entry(String parentMediaId, List<MediaBrowserCompat.MediaItem> mediaItems) {
+            this.parentMediaId = parentMediaId;
+            this.mediaItems = Collections.unmodifiableList(mediaItems);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package com.ryanheise.audioservice;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Mirrors the children loaded from the Dart audio handler to disk, so that a
+ * media browser that binds to the service while the app process is cold can
+ * be answered before the Flutter engine has started.
+ * <p>
+ * Children are stored as the encoded bytes of the handler's response, keyed
+ * like the browse cache, and written through on every response. The catalog
+ * is bounded by both its number of rows and their total size, evicting the
+ * least recently used rows. Reads and writes run on a single background
+ * thread, and loads are answered on the main thread.
+ */
+class BrowseCatalog extends SQLiteOpenHelper {
+    private static final String TAG = "BrowseCatalog";
+    private static final String DATABASE_NAME = "audio_service_browse_catalog.db";
+    private static final int SCHEMA_VERSION = 2;
+    // The catalog is rebuilt whenever its schema or the encoding of the
+    // children it stores changes.
+    private static final int DATABASE_VERSION = SCHEMA_VERSION * 1000 + MediaItemCodec.VERSION;
+    private static final String TABLE_CHILDREN = "children";
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_PARENT_MEDIA_ID = "parent_media_id";
+    private static final String COLUMN_ENCODED_CHILDREN = "encoded_children";
+    private static final String COLUMN_LAST_USED = "last_used";
+    private static final int MAX_ROWS = 500;
+    private static final long MAX_BYTES = 8 * 1024 * 1024;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private int hitCount;
+    private int missCount;
+
+    BrowseCatalog(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_CHILDREN + " ("
+                + COLUMN_KEY + " TEXT PRIMARY KEY, "
+                + COLUMN_PARENT_MEDIA_ID + " TEXT NOT NULL, "
+                + COLUMN_ENCODED_CHILDREN + " BLOB NOT NULL, "
+                + COLUMN_LAST_USED + " INTEGER NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE_CHILDREN + "_" + COLUMN_LAST_USED
+                + " ON " + TABLE_CHILDREN + " (" + COLUMN_LAST_USED + ")");
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // The catalog is only a mirror, so it is rebuilt rather than migrated.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_CHILDREN);
+        onCreate(db);
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        onUpgrade(db, oldVersion, newVersion);
+    }
+
+    /**
+     * Loads the encoded children stored under a browse cache key, passing
+     * null to the callback if there are none.
+     */
+    void load(final String key, final AudioService.LoadCallback<byte[]> callback) {
+        executor.execute(() -> {
+            byte[] encodedChildren = null;
+            try {
+                Cursor cursor = getReadableDatabase().query(TABLE_CHILDREN,
+                        new String[] { COLUMN_ENCODED_CHILDREN },
+                        COLUMN_KEY + " = ?", new String[] { key },
+                        null, null, null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        encodedChildren = cursor.getBlob(0);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                if (encodedChildren != null) {
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_LAST_USED, System.currentTimeMillis());
+                    getWritableDatabase().update(TABLE_CHILDREN, values, COLUMN_KEY + " = ?", new String[] { key });
+                }
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Failed to load " + key, e);
+            }
+            final byte[] result = encodedChildren;
+            handler.post(() -> {
+                if (result != null) hitCount++; else missCount++;
+                callback.onLoaded(result);
+            });
+        });
+    }
+
+    void put(final String key, final String parentMediaId, final byte[] encodedChildren) {
+        executor.execute(() -> {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_KEY, key);
+            values.put(COLUMN_PARENT_MEDIA_ID, parentMediaId);
+            values.put(COLUMN_ENCODED_CHILDREN, encodedChildren);
+            values.put(COLUMN_LAST_USED, System.currentTimeMillis());
+            try {
+                SQLiteDatabase db = getWritableDatabase();
+                db.insertWithOnConflict(TABLE_CHILDREN, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                evict(db);
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Failed to store " + key, e);
+            }
+        });
+    }
+
+    /**
+     * Deletes the least recently used rows until the catalog is within
+     * MAX_ROWS and MAX_BYTES.
+     */
+    private void evict(SQLiteDatabase db) {
+        db.delete(TABLE_CHILDREN, COLUMN_KEY + " NOT IN (SELECT " + COLUMN_KEY + " FROM " + TABLE_CHILDREN
+                + " ORDER BY " + COLUMN_LAST_USED + " DESC LIMIT " + MAX_ROWS + ")", null);
+        Cursor cursor = db.rawQuery("SELECT " + COLUMN_KEY + ", length(" + COLUMN_ENCODED_CHILDREN + ") FROM "
+                + TABLE_CHILDREN + " ORDER BY " + COLUMN_LAST_USED + " DESC", null);
+        long size = 0;
+        List<String> evictedKeys = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                size += cursor.getLong(1);
+                if (size > MAX_BYTES) evictedKeys.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        for (String evictedKey : evictedKeys) {
+            db.delete(TABLE_CHILDREN, COLUMN_KEY + " = ?", new String[] { evictedKey });
+        }
+    }
+
+    /** Deletes the children stored under a key that could not be decoded. */
+    void discard(final String key, RuntimeException cause) {
+        Log.w(TAG, "Discarding unreadable children of " + key, cause);
+        executor.execute(() -> {
+            try {
+                getWritableDatabase().delete(TABLE_CHILDREN, COLUMN_KEY + " = ?", new String[] { key });
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Failed to delete " + key, e);
+            }
+        });
+    }
+
+    /** Deletes all stored children, for when the catalog is disabled. */
+    void clear() {
+        executor.execute(() -> {
+            try {
+                getWritableDatabase().delete(TABLE_CHILDREN, null, null);
+            } catch (SQLiteException e) {
+                Log.w(TAG, "Failed to clear", e);
+            }
+        });
+    }
+
+    /** Closes the database once pending reads and writes have finished. */
+    @Override
+    public synchronized void close() {
+        executor.execute(super::close);
+        executor.shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "BrowseCatalog[hits=" + hitCount + ",misses=" + missCount + "]";
+    }
+}
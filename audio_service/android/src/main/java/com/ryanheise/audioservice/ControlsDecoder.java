@@ -0,0 +1,74 @@
+package com.ryanheise.audioservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parses the controls, system actions and compact action indices of the
+ * state updates from Dart.
+ * <p>
+ * Most updates only change the position, so the parsed values are reused
+ * while their raw values are the same. Passing the same instances on also
+ * lets AudioService skip its own comparisons.
+ * <p>
+ * This must only be used from one thread.
+ */
+class ControlsDecoder {
+    private List<Map<?, ?>> rawControls;
+    private List<Integer> rawSystemActions;
+    private List<Object> rawCompactActionIndices;
+    private List<MediaControl> controls;
+    private long actionBits;
+    private int[] compactActionIndices;
+
+    void decode(List<Map<?, ?>> rawControls, List<Integer> rawSystemActions, List<Object> rawCompactActionIndices) {
+        if (!rawControls.equals(this.rawControls) || !rawSystemActions.equals(this.rawSystemActions)) {
+            List<MediaControl> controls = new ArrayList<>();
+            long actionBits = 0;
+            for (Map<?, ?> rawControl : rawControls) {
+                String resource = (String)rawControl.get("androidIcon");
+                String label = (String)rawControl.get("label");
+                long actionCode = 1 << ((Integer)rawControl.get("action"));
+                actionBits |= actionCode;
+                Map<?, ?> customActionMap = (Map<?, ?>)rawControl.get("customAction");
+                CustomMediaAction customAction = null;
+                if (customActionMap != null) {
+                    String name = (String) customActionMap.get("name");
+                    Map<?, ?> extras = (Map<?, ?>) customActionMap.get("extras");
+                    customAction = new CustomMediaAction(name, extras);
+                }
+                controls.add(new MediaControl(resource, label, actionCode, customAction));
+            }
+            for (Integer rawSystemAction : rawSystemActions) {
+                long actionCode = 1 << rawSystemAction;
+                actionBits |= actionCode;
+            }
+            this.rawControls = rawControls;
+            this.rawSystemActions = rawSystemActions;
+            this.controls = controls;
+            this.actionBits = actionBits;
+        }
+        if (rawCompactActionIndices == null) {
+            compactActionIndices = null;
+        } else if (compactActionIndices == null || !rawCompactActionIndices.equals(this.rawCompactActionIndices)) {
+            int[] compactActionIndices = new int[Math.min(AudioService.MAX_COMPACT_ACTIONS, rawCompactActionIndices.size())];
+            for (int i = 0; i < compactActionIndices.length; i++)
+                compactActionIndices[i] = (Integer)rawCompactActionIndices.get(i);
+            this.compactActionIndices = compactActionIndices;
+        }
+        this.rawCompactActionIndices = rawCompactActionIndices;
+    }
+
+    List<MediaControl> getControls() {
+        return controls;
+    }
+
+    long getActionBits() {
+        return actionBits;
+    }
+
+    int[] getCompactActionIndices() {
+        return compactActionIndices;
+    }
+}
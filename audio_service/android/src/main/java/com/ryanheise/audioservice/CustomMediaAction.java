@@ -6,10 +6,13 @@ import java.util.Objects;
 public class CustomMediaAction {
     public final String name;
     public final Map<?, ?> extras;
+    // The types of the extras in the Bundle, for reading them back.
+    final Map<String, Integer> extrasTypes;
 
     public CustomMediaAction(String name, Map<?, ?> extras) {
         this.name = name;
         this.extras = extras;
+        this.extrasTypes = Extras.bundleTypes(extras);
     }
 
     @Override
@@ -0,0 +1,250 @@
+package com.ryanheise.audioservice;
+
+import android.app.SearchManager;
+import android.os.Bundle;
+import android.provider.MediaStore;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Converts extras between the maps sent over the platform channel and
+ * Bundles, in a single pass over the entries.
+ * <p>
+ * A Bundle doesn't record the types of its values, so reading one back
+ * uses type tags for its keys where they are known: tables of the standard
+ * keys of each kind of Bundle, the raw extras kept with each cached media
+ * item, and the extras declared by each custom action. Each tagged key is
+ * read with its typed getter, and the other keys, or values that don't
+ * match their tag, fall back to a generic lookup.
+ */
+class Extras {
+    static final int TYPE_UNKNOWN = 0;
+    static final int TYPE_INT = 1;
+    static final int TYPE_LONG = 2;
+    static final int TYPE_DOUBLE = 3;
+    static final int TYPE_BOOLEAN = 4;
+    static final int TYPE_STRING = 5;
+    static final int TYPE_STRING_LIST = 6;
+    // Values that can't be sent over the platform channel, such as ratings.
+    static final int TYPE_NONE = 7;
+
+    /** The types of the standard options of a browse request. */
+    static final Map<String, Integer> BROWSE_OPTION_TYPES;
+    /** The types of the standard extras of a search. */
+    static final Map<String, Integer> SEARCH_EXTRA_TYPES;
+    private static final Map<String, Integer> METADATA_TYPES;
+
+    static {
+        Map<String, Integer> browseOptionTypes = new HashMap<>();
+        browseOptionTypes.put(MediaBrowserCompat.EXTRA_PAGE, TYPE_INT);
+        browseOptionTypes.put(MediaBrowserCompat.EXTRA_PAGE_SIZE, TYPE_INT);
+        BROWSE_OPTION_TYPES = Collections.unmodifiableMap(browseOptionTypes);
+
+        Map<String, Integer> searchExtraTypes = new HashMap<>();
+        searchExtraTypes.put(SearchManager.QUERY, TYPE_STRING);
+        searchExtraTypes.put(MediaStore.EXTRA_MEDIA_FOCUS, TYPE_STRING);
+        searchExtraTypes.put(MediaStore.EXTRA_MEDIA_TITLE, TYPE_STRING);
+        searchExtraTypes.put(MediaStore.EXTRA_MEDIA_ARTIST, TYPE_STRING);
+        searchExtraTypes.put(MediaStore.EXTRA_MEDIA_ALBUM, TYPE_STRING);
+        searchExtraTypes.put(MediaStore.EXTRA_MEDIA_GENRE, TYPE_STRING);
+        searchExtraTypes.put(MediaStore.EXTRA_MEDIA_PLAYLIST, TYPE_STRING);
+        searchExtraTypes.put(AudioService.EXTRA_SEARCH_CANDIDATES, TYPE_STRING_LIST);
+        SEARCH_EXTRA_TYPES = Collections.unmodifiableMap(searchExtraTypes);
+
+        // The keys that AudioService.createMediaMetadata writes.
+        Map<String, Integer> metadataTypes = new HashMap<>();
+        metadataTypes.put(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, TYPE_STRING);
+        metadataTypes.put(MediaMetadataCompat.METADATA_KEY_TITLE, TYPE_STRING);
+        metadataTypes.put(MediaMetadataCompat.METADATA_KEY_ALBUM, TYPE_STRING);
+        metadataTypes.put(MediaMetadataCompat.METADATA_KEY_ARTIST, TYPE_STRING);
+        metadataTypes.put(MediaMetadataCompat.METADATA_KEY_GENRE, TYPE_STRING);
+        metadataTypes.put(MediaMetadataCompat.METADATA_KEY_DURATION, TYPE_LONG);
+        metadataTypes.put(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON_URI, TYPE_STRING);
+        metadataTypes.put("playable_long", TYPE_LONG);
+        metadataTypes.put(MediaMetadataCompat.METADATA_KEY_DISPLAY_TITLE, TYPE_STRING);
+        metadataTypes.put(MediaMetadataCompat.METADATA_KEY_DISPLAY_SUBTITLE, TYPE_STRING);
+        metadataTypes.put(MediaMetadataCompat.METADATA_KEY_DISPLAY_DESCRIPTION, TYPE_STRING);
+        metadataTypes.put(MediaMetadataCompat.METADATA_KEY_RATING, TYPE_NONE);
+        METADATA_TYPES = Collections.unmodifiableMap(metadataTypes);
+    }
+
+    private Extras() {
+    }
+
+    /**
+     * Converts a map of extras into a Bundle, keeping values that are an
+     * Integer, Long, Double, Boolean or String.
+     */
+    static Bundle toBundle(Map<?, ?> map) {
+        if (map == null) return null;
+        final Bundle bundle = new Bundle();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            String key = (String)entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof Integer) bundle.putInt(key, (Integer)value);
+            else if (value instanceof Long) bundle.putLong(key, (Long)value);
+            else if (value instanceof Double) bundle.putDouble(key, (Double)value);
+            else if (value instanceof Boolean) bundle.putBoolean(key, (Boolean)value);
+            else if (value instanceof String) bundle.putString(key, (String)value);
+        }
+        return bundle;
+    }
+
+    /** Returns the types that {@link #toBundle} stores the given extras as. */
+    static Map<String, Integer> bundleTypes(Map<?, ?> map) {
+        if (map == null) return null;
+        Map<String, Integer> types = new HashMap<>();
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            Object value = entry.getValue();
+            int type = TYPE_UNKNOWN;
+            if (value instanceof Integer) type = TYPE_INT;
+            else if (value instanceof Long) type = TYPE_LONG;
+            else if (value instanceof Double) type = TYPE_DOUBLE;
+            else if (value instanceof Boolean) type = TYPE_BOOLEAN;
+            else if (value instanceof String) type = TYPE_STRING;
+            types.put((String)entry.getKey(), type);
+        }
+        return types;
+    }
+
+    /**
+     * Converts a Bundle of unknown origin into a map of extras, keeping
+     * values that can be sent over the platform channel.
+     */
+    static Map<String, Object> toMap(Bundle bundle) {
+        return toMap(bundle, null);
+    }
+
+    /**
+     * Converts a Bundle into a map of extras, reading the keys in
+     * {@code types} with their typed getters.
+     */
+    static Map<String, Object> toMap(Bundle bundle, Map<String, Integer> types) {
+        if (bundle == null) return null;
+        Map<String, Object> map = new HashMap<>();
+        for (String key : bundle.keySet()) {
+            Integer type = types != null ? types.get(key) : null;
+            Object value = get(bundle, key, type != null ? type : TYPE_UNKNOWN);
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Writes a map of extras into media metadata. Integers and booleans are
+     * stored as longs and doubles as strings since metadata only supports
+     * long and text values.
+     */
+    static void putMetadata(MediaMetadataCompat.Builder builder, Map<?, ?> extras) {
+        if (extras == null) return;
+        for (Map.Entry<?, ?> entry : extras.entrySet()) {
+            String key = (String)entry.getKey();
+            Object value = entry.getValue();
+            if (value instanceof Long) {
+                builder.putLong(key, (Long)value);
+            } else if (value instanceof Integer) {
+                builder.putLong(key, (Integer)value);
+            } else if (value instanceof String) {
+                builder.putString(key, (String)value);
+            } else if (value instanceof Boolean) {
+                builder.putLong(key, (Boolean)value ? 1 : 0);
+            } else if (value instanceof Double) {
+                builder.putString(key, value.toString());
+            }
+        }
+    }
+
+    /**
+     * Converts the bundle of media metadata into a map of extras. The
+     * {@code extras} that the metadata was created from, if known, give the
+     * types of the keys that {@link #putMetadata} wrote.
+     */
+    static Map<String, Object> metadataToMap(Bundle bundle, Map<?, ?> extras) {
+        if (bundle == null) return null;
+        Map<String, Object> map = new HashMap<>();
+        for (String key : bundle.keySet()) {
+            int type;
+            Object extra = extras != null ? extras.get(key) : null;
+            if (extra != null) {
+                // The extras are written after the standard keys.
+                type = metadataType(extra);
+            } else {
+                Integer standardType = METADATA_TYPES.get(key);
+                type = standardType != null ? standardType : TYPE_UNKNOWN;
+            }
+            Object value = get(bundle, key, type);
+            if (value != null) {
+                map.put(key, value);
+            }
+        }
+        return map;
+    }
+
+    private static int metadataType(Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Boolean) {
+            return TYPE_LONG;
+        } else if (value instanceof String || value instanceof Double) {
+            return TYPE_STRING;
+        } else {
+            return TYPE_UNKNOWN;
+        }
+    }
+
+    /**
+     * Reads a value with the getter for its type. The typed getters return a
+     * default rather than fail when the value has another type, so a default
+     * falls back to the generic lookup.
+     */
+    private static Object get(Bundle bundle, String key, int type) {
+        switch (type) {
+        case TYPE_INT: {
+            int value = bundle.getInt(key, Integer.MIN_VALUE);
+            if (value != Integer.MIN_VALUE) return value;
+            break;
+        }
+        case TYPE_LONG: {
+            long value = bundle.getLong(key, Long.MIN_VALUE);
+            if (value != Long.MIN_VALUE) return value;
+            break;
+        }
+        case TYPE_DOUBLE: {
+            double value = bundle.getDouble(key, Double.NaN);
+            if (!Double.isNaN(value)) return value;
+            break;
+        }
+        case TYPE_BOOLEAN:
+            if (bundle.getBoolean(key, false)) return true;
+            if (!bundle.getBoolean(key, true)) return false;
+            break;
+        case TYPE_STRING: {
+            String value = bundle.getString(key);
+            if (value != null) return value;
+            break;
+        }
+        case TYPE_STRING_LIST: {
+            Object value = bundle.getStringArrayList(key);
+            if (value != null) return value;
+            break;
+        }
+        case TYPE_NONE:
+            return null;
+        }
+        return getSerializable(bundle, key);
+    }
+
+    private static Object getSerializable(Bundle bundle, String key) {
+        // Unlike getSerializable, get doesn't log a ClassCastException for
+        // each Parcelable value such as the art bitmap and the rating.
+        // TODO: use typesafe version once SDK 33 is released.
+        @SuppressWarnings("deprecation")
+        Object value = bundle.get(key);
+        return value instanceof Serializable ? value : null;
+    }
+}
@@ -0,0 +1,53 @@
+package com.ryanheise.audioservice;
+
+import java.util.Arrays;
+
+/**
+ * Records the latencies of the most recent requests of one kind in a ring
+ * buffer, from which percentiles are computed on demand.
+ */
+class LatencyRecorder {
+    static final int DEFAULT_CAPACITY = 256;
+
+    private final long[] samples;
+    private int sampleCount;
+    private int nextSample;
+    private int timedOutCount;
+
+    LatencyRecorder(int capacity) {
+        samples = new long[capacity];
+    }
+
+    synchronized void record(long latency) {
+        samples[nextSample] = latency;
+        nextSample = (nextSample + 1) % samples.length;
+        if (sampleCount < samples.length) sampleCount++;
+    }
+
+    /** Records a request that was answered with a fallback at its deadline. */
+    synchronized void recordTimeout(long latency) {
+        timedOutCount++;
+        record(latency);
+    }
+
+    synchronized int getTimedOutCount() {
+        return timedOutCount;
+    }
+
+    /** Returns the given percentile of the recorded latencies. */
+    synchronized long getPercentile(double percentile) {
+        if (sampleCount == 0) return 0;
+        long[] sorted = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(sorted);
+        int index = (int)Math.ceil(percentile / 100 * sampleCount) - 1;
+        return sorted[Math.max(0, Math.min(index, sampleCount - 1))];
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{p50=" + getPercentile(50)
+            + ",p90=" + getPercentile(90)
+            + ",p99=" + getPercentile(99)
+            + ",timedOut=" + timedOutCount + "}";
+    }
+}
@@ -24,4 +24,9 @@ public class MediaControl {
             return false;
         }
     }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(icon, label, actionCode, customAction);
+    }
 }
@@ -0,0 +1,142 @@
+package com.ryanheise.audioservice;
+
+import android.support.v4.media.RatingCompat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes lists of media items from the compact binary format written by
+ * MediaItemCodec in the Dart platform interface. This avoids building a map
+ * of boxed values for every item of a large queue or browse result.
+ * <p>
+ * The format is big-endian:
+ * <pre>
+ * list:    version:u8 count:i32 item*
+ * item:    fields:i32 id:string title:string [album:string] [artist:string]
+ *          [genre:string] [duration:i64] [artUri:string] [playable:u8]
+ *          [displayTitle:string] [displaySubtitle:string]
+ *          [displayDescription:string] [rating] [extras]
+ * string:  length:i32 utf8:u8[length]
+ * rating:  type:u8 value
+ * extras:  count:i32 (key:string value)*
+ * value:   tag:u8 (i32 | i64 | f64 | u8 | string), or just the tag for null
+ * </pre>
+ * where each optional field is present only if its bit is set in fields.
+ */
+class MediaItemCodec {
+    static final int VERSION = 1;
+
+    static final int FIELD_ALBUM = 1 << 0;
+    static final int FIELD_ARTIST = 1 << 1;
+    static final int FIELD_GENRE = 1 << 2;
+    static final int FIELD_DURATION = 1 << 3;
+    static final int FIELD_ART_URI = 1 << 4;
+    static final int FIELD_PLAYABLE = 1 << 5;
+    static final int FIELD_DISPLAY_TITLE = 1 << 6;
+    static final int FIELD_DISPLAY_SUBTITLE = 1 << 7;
+    static final int FIELD_DISPLAY_DESCRIPTION = 1 << 8;
+    static final int FIELD_RATING = 1 << 9;
+    static final int FIELD_EXTRAS = 1 << 10;
+
+    static final int TYPE_NULL = 0;
+    static final int TYPE_INT = 1;
+    static final int TYPE_LONG = 2;
+    static final int TYPE_DOUBLE = 3;
+    static final int TYPE_BOOL = 4;
+    static final int TYPE_STRING = 5;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static List<Item> decode(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported media item encoding version: " + version);
+        }
+        int count = buffer.getInt();
+        List<Item> items = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(decodeItem(buffer));
+        }
+        return items;
+    }
+
+    private static Item decodeItem(ByteBuffer buffer) {
+        Item item = new Item();
+        int start = buffer.position();
+        int fields = buffer.getInt();
+        item.id = getString(buffer);
+        item.title = getString(buffer);
+        if ((fields & FIELD_ALBUM) != 0) item.album = getString(buffer);
+        if ((fields & FIELD_ARTIST) != 0) item.artist = getString(buffer);
+        if ((fields & FIELD_GENRE) != 0) item.genre = getString(buffer);
+        if ((fields & FIELD_DURATION) != 0) item.duration = buffer.getLong();
+        if ((fields & FIELD_ART_URI) != 0) item.artUri = getString(buffer);
+        if ((fields & FIELD_PLAYABLE) != 0) item.playable = buffer.get() != 0;
+        if ((fields & FIELD_DISPLAY_TITLE) != 0) item.displayTitle = getString(buffer);
+        if ((fields & FIELD_DISPLAY_SUBTITLE) != 0) item.displaySubtitle = getString(buffer);
+        if ((fields & FIELD_DISPLAY_DESCRIPTION) != 0) item.displayDescription = getString(buffer);
+        if ((fields & FIELD_RATING) != 0) {
+            int type = buffer.get();
+            item.rating = AudioServicePlugin.createRating(type, getValue(buffer));
+        }
+        if ((fields & FIELD_EXTRAS) != 0) {
+            int count = buffer.getInt();
+            Map<String, Object> extras = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String key = getString(buffer);
+                extras.put(key, getValue(buffer));
+            }
+            item.extras = extras;
+        }
+        // Copied so that an item kept for comparison doesn't keep the whole
+        // payload alive.
+        item.encoded = ByteBuffer.wrap(Arrays.copyOfRange(buffer.array(), start, buffer.position()));
+        return item;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF8);
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
+    private static Object getValue(ByteBuffer buffer) {
+        int type = buffer.get();
+        switch (type) {
+        case TYPE_NULL: return null;
+        case TYPE_INT: return buffer.getInt();
+        case TYPE_LONG: return buffer.getLong();
+        case TYPE_DOUBLE: return buffer.getDouble();
+        case TYPE_BOOL: return buffer.get() != 0;
+        case TYPE_STRING: return getString(buffer);
+        default: throw new IllegalArgumentException("Unknown value type: " + type);
+        }
+    }
+
+    /** A decoded media item, with the same fields as the Dart MediaItem. */
+    static class Item {
+        String id;
+        String title;
+        String album;
+        String artist;
+        String genre;
+        Long duration;
+        String artUri;
+        Boolean playable;
+        String displayTitle;
+        String displaySubtitle;
+        String displayDescription;
+        RatingCompat rating;
+        Map<String, Object> extras;
+        /** The encoded bytes of this item, which identify its content. */
+        ByteBuffer encoded;
+    }
+}
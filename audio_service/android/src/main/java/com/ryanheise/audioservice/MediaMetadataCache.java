@@ -0,0 +1,189 @@
+package com.ryanheise.audioservice;
+
+import android.support.v4.media.MediaMetadataCompat;
+import android.util.LruCache;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded cache of the media metadata created for queue items, browse
+ * results and the now-playing item, keyed by media ID. Each entry also keeps
+ * the extras of the item as they were passed from Dart, since the metadata
+ * only holds them as longs and strings.
+ * <p>
+ * Entries are weighed by their approximate size in bytes and evicted in
+ * least-recently-used order. Entries for the current queue and the
+ * now-playing item are pinned outside of the LRU so that they are never
+ * evicted, since the media session callbacks need to look them up.
+ */
+class MediaMetadataCache {
+    private static final int ENTRY_OVERHEAD = 256;
+    private static final int STRING_OVERHEAD = 40;
+    private static final int VALUE_SIZE = 16;
+
+    /**
+     * Estimates the size in bytes of the given metadata field values, where
+     * each value is a String, a boxed primitive or a Map of extras.
+     */
+    static int estimateSize(Object... values) {
+        int size = ENTRY_OVERHEAD;
+        for (Object value : values) {
+            size += estimateValueSize(value);
+        }
+        return size;
+    }
+
+    private static int estimateValueSize(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof String) {
+            return STRING_OVERHEAD + 2 * ((String)value).length();
+        } else if (value instanceof Map) {
+            int size = 0;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()) {
+                size += estimateValueSize(entry.getKey()) + estimateValueSize(entry.getValue());
+            }
+            return size;
+        } else {
+            return VALUE_SIZE;
+        }
+    }
+
+    private final LruCache<String, Entry> lruCache;
+    private final Map<String, Entry> pinned = new HashMap<>();
+    private Set<String> queueIds = Collections.emptySet();
+    private String nowPlayingId;
+    private int pinnedHitCount;
+
+    MediaMetadataCache(int maxSize) {
+        lruCache = new LruCache<String, Entry>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return entry.size;
+            }
+        };
+    }
+
+    synchronized void put(String mediaId, MediaMetadataCompat metadata, Map<?, ?> extras, int size) {
+        if (mediaId == null) return;
+        Entry entry = new Entry(metadata, extras, size);
+        if (isPinned(mediaId)) {
+            pinned.put(mediaId, entry);
+        } else {
+            lruCache.put(mediaId, entry);
+        }
+    }
+
+    synchronized MediaMetadataCompat get(String mediaId) {
+        Entry entry = getEntry(mediaId);
+        return entry != null ? entry.metadata : null;
+    }
+
+    synchronized Entry getEntry(String mediaId) {
+        if (mediaId == null) return null;
+        Entry entry = pinned.get(mediaId);
+        if (entry != null) {
+            pinnedHitCount++;
+            return entry;
+        }
+        return lruCache.get(mediaId);
+    }
+
+    /**
+     * Pins the entries for the media IDs in the current queue. This should be
+     * called before the queue's metadata is created so that it is put
+     * directly into the pinned set.
+     */
+    synchronized void pinQueue(Set<String> mediaIds) {
+        queueIds = mediaIds;
+        for (Iterator<Map.Entry<String, Entry>> it = pinned.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> pinnedEntry = it.next();
+            if (!isPinned(pinnedEntry.getKey())) {
+                it.remove();
+                lruCache.put(pinnedEntry.getKey(), pinnedEntry.getValue());
+            }
+        }
+        for (String mediaId : mediaIds) {
+            pin(mediaId);
+        }
+    }
+
+    /** Pins the entry for the now-playing media ID. */
+    synchronized void pinNowPlaying(String mediaId) {
+        String oldNowPlayingId = nowPlayingId;
+        nowPlayingId = mediaId;
+        if (oldNowPlayingId != null && !isPinned(oldNowPlayingId)) {
+            Entry entry = pinned.remove(oldNowPlayingId);
+            if (entry != null) {
+                lruCache.put(oldNowPlayingId, entry);
+            }
+        }
+        if (mediaId != null) {
+            pin(mediaId);
+        }
+    }
+
+    synchronized void clear() {
+        pinned.clear();
+        queueIds = Collections.emptySet();
+        nowPlayingId = null;
+        lruCache.evictAll();
+    }
+
+    synchronized int hitCount() {
+        return lruCache.hitCount() + pinnedHitCount;
+    }
+
+    synchronized int missCount() {
+        return lruCache.missCount();
+    }
+
+    synchronized int evictionCount() {
+        return lruCache.evictionCount();
+    }
+
+    synchronized int size() {
+        return lruCache.size();
+    }
+
+    synchronized int pinnedCount() {
+        return pinned.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MediaMetadataCache[size=" + lruCache.size() + "/" + lruCache.maxSize()
+            + ",pinned=" + pinned.size()
+            + ",hits=" + hitCount()
+            + ",misses=" + missCount()
+            + ",evictions=" + evictionCount() + "]";
+    }
+
+    private boolean isPinned(String mediaId) {
+        return mediaId.equals(nowPlayingId) || queueIds.contains(mediaId);
+    }
+
+    private void pin(String mediaId) {
+        if (pinned.containsKey(mediaId)) return;
+        Entry entry = lruCache.remove(mediaId);
+        if (entry != null) {
+            pinned.put(mediaId, entry);
+        }
+    }
+
+    static class Entry {
+        final MediaMetadataCompat metadata;
+        final Map<?, ?> extras;
+        final int size;
+
+        Entry(MediaMetadataCompat metadata, Map<?, ?> extras, int size) {
+            this.metadata = metadata;
+            this.extras = extras;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.ryanheise.audioservice;
+
+import android.graphics.Bitmap;
+
+import androidx.core.app.NotificationCompat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * A fingerprint of the content that is visible in the media notification,
+ * used to skip posting a notification that would look the same as the one
+ * already shown.
+ * <p>
+ * Art and actions are compared by identity since the art is cached by URI
+ * and actions are cached per control.
+ */
+class NotificationContent {
+    private final String title;
+    private final String subtitle;
+    private final String description;
+    private final Bitmap art;
+    private final List<NotificationCompat.Action> actions;
+    private final int[] compactActionIndices;
+    private final boolean ongoing;
+    private final int color;
+
+    NotificationContent(CharSequence title, CharSequence subtitle, CharSequence description, Bitmap art, List<NotificationCompat.Action> actions, int[] compactActionIndices, boolean ongoing, int color) {
+        this.title = title != null ? title.toString() : null;
+        this.subtitle = subtitle != null ? subtitle.toString() : null;
+        this.description = description != null ? description.toString() : null;
+        this.art = art;
+        this.actions = new ArrayList<>(actions);
+        this.compactActionIndices = compactActionIndices;
+        this.ongoing = ongoing;
+        this.color = color;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        NotificationContent that = (NotificationContent)o;
+        if (art != that.art || ongoing != that.ongoing || color != that.color) return false;
+        if (actions.size() != that.actions.size()) return false;
+        for (int i = 0; i < actions.size(); i++) {
+            if (actions.get(i) != that.actions.get(i)) return false;
+        }
+        return Objects.equals(title, that.title)
+            && Objects.equals(subtitle, that.subtitle)
+            && Objects.equals(description, that.description)
+            && Arrays.equals(compactActionIndices, that.compactActionIndices);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(title, subtitle, description, System.identityHashCode(art), actions.size(), Arrays.hashCode(compactActionIndices), ongoing, color);
+    }
+}
@@ -0,0 +1,288 @@
+package com.ryanheise.audioservice;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import io.flutter.plugin.common.MethodChannel;
+import io.flutter.plugin.common.MethodChannel.Result;
+
+/**
+ * Dispatches method invocations to the Dart audio handler in three lanes.
+ * <p>
+ * Transport commands and other invocations are sent immediately, while
+ * browse requests are limited to a few in flight at a time and the rest are
+ * queued natively. This way a slow or large browse round trip never holds up
+ * a transport command such as a headset pause, which is always sent ahead of
+ * any queued browse request.
+ * <p>
+ * Browse requests made by prefetching share the browse limit at a lower
+ * priority. Only one is in flight at a time, and only while no browse
+ * request from a browser is queued, so that prefetching never delays the
+ * screen a user is waiting on.
+ * <p>
+ * The time each invocation waits is measured from when it was made, which
+ * includes any time spent in the PendingMethodQueue before the handler was
+ * ready.
+ * <p>
+ * This must only be used from the main thread.
+ */
+class OutboundDispatcher {
+    enum Lane { DEFAULT, BROWSE, PREFETCH }
+
+    static final int DEFAULT_MAX_BROWSE_IN_FLIGHT = 2;
+
+    private static final Set<String> BROWSE_METHODS = new HashSet<>(Arrays.asList(
+            "getChildren",
+            "getMediaItem",
+            "search"));
+
+    static Lane laneOf(String method) {
+        if (BROWSE_METHODS.contains(method)) return Lane.BROWSE;
+        return Lane.DEFAULT;
+    }
+
+    private MethodChannel channel;
+    private int maxBrowseInFlight;
+    private final ArrayDeque<Invocation> browseQueue = new ArrayDeque<>();
+    private final ArrayDeque<Invocation> prefetchQueue = new ArrayDeque<>();
+    // Includes the prefetch in flight, if any.
+    private int browseInFlight;
+    private boolean prefetchInFlight;
+    // Replies from a previous channel no longer count towards browseInFlight.
+    private int generation;
+    private final LaneStats[] laneStats = new LaneStats[Lane.values().length];
+
+    OutboundDispatcher(MethodChannel channel, int maxBrowseInFlight) {
+        this.channel = channel;
+        this.maxBrowseInFlight = maxBrowseInFlight;
+        for (int i = 0; i < laneStats.length; i++) {
+            laneStats[i] = new LaneStats();
+        }
+    }
+
+    void setChannel(MethodChannel channel) {
+        this.channel = channel;
+        generation++;
+        browseInFlight = 0;
+        prefetchInFlight = false;
+        cancelQueuedBrowseRequests();
+    }
+
+    void setMaxBrowseInFlight(int maxBrowseInFlight) {
+        this.maxBrowseInFlight = maxBrowseInFlight;
+        sendQueuedBrowseRequests();
+    }
+
+    /**
+     * Dispatches an invocation in a lane that was made at invokeTime, in
+     * SystemClock.uptimeMillis().
+     */
+    void dispatch(Lane lane, String method, Object arg, Result result, long invokeTime) {
+        Invocation invocation = new Invocation(lane, method, arg, result, invokeTime);
+        if (lane == Lane.BROWSE && result != null && browseInFlight >= maxBrowseInFlight) {
+            browseQueue.add(invocation);
+            return;
+        }
+        if (lane == Lane.PREFETCH && !canSendPrefetch()) {
+            prefetchQueue.add(invocation);
+            return;
+        }
+        send(invocation);
+    }
+
+    /**
+     * Moves a queued prefetch request into the browse lane, for when a
+     * browser requests the same children. Returns whether it was queued.
+     */
+    boolean prioritize(Result result) {
+        Invocation invocation = remove(prefetchQueue, result);
+        if (invocation == null) return false;
+        dispatch(Lane.BROWSE, invocation.method, invocation.arg, invocation.result, invocation.invokeTime);
+        return true;
+    }
+
+    /**
+     * Removes the queued browse request awaiting the given result, returning
+     * whether it was still queued. A request that is removed is never sent.
+     */
+    boolean cancel(Result result) {
+        return remove(browseQueue, result) != null || remove(prefetchQueue, result) != null;
+    }
+
+    /**
+     * Fails the browse requests that are still queued, for when the channel
+     * they were queued for is gone.
+     */
+    void cancelQueuedBrowseRequests() {
+        Invocation invocation;
+        while ((invocation = browseQueue.poll()) != null) {
+            invocation.result.error("CANCELLED", "The audio handler was detached", null);
+        }
+        while ((invocation = prefetchQueue.poll()) != null) {
+            invocation.result.error("CANCELLED", "The audio handler was detached", null);
+        }
+    }
+
+    int getQueuedBrowseCount() {
+        return browseQueue.size();
+    }
+
+    LaneStats getStats(Lane lane) {
+        return laneStats[lane.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("OutboundDispatcher[queuedBrowse=").append(browseQueue.size())
+            .append(",queuedPrefetch=").append(prefetchQueue.size())
+            .append(",browseInFlight=").append(browseInFlight);
+        for (Lane lane : Lane.values()) {
+            sb.append(",").append(lane).append("=").append(laneStats[lane.ordinal()]);
+        }
+        return sb.append("]").toString();
+    }
+
+    private void send(final Invocation invocation) {
+        final long sendTime = SystemClock.uptimeMillis();
+        final LaneStats stats = laneStats[invocation.lane.ordinal()];
+        stats.recordWait(sendTime - invocation.invokeTime);
+        if (invocation.result == null) {
+            channel.invokeMethod(invocation.method, invocation.arg);
+            return;
+        }
+        final boolean countsInFlight = invocation.lane != Lane.DEFAULT;
+        final boolean prefetch = invocation.lane == Lane.PREFETCH;
+        final int sendGeneration = generation;
+        if (countsInFlight) browseInFlight++;
+        if (prefetch) prefetchInFlight = true;
+        channel.invokeMethod(invocation.method, invocation.arg, new Result() {
+            @Override
+            public void success(Object obj) {
+                complete();
+                invocation.result.success(obj);
+            }
+
+            @Override
+            public void error(String errorCode, String errorMessage, Object errorDetails) {
+                complete();
+                invocation.result.error(errorCode, errorMessage, errorDetails);
+            }
+
+            @Override
+            public void notImplemented() {
+                complete();
+                invocation.result.notImplemented();
+            }
+
+            private void complete() {
+                stats.recordRoundTrip(SystemClock.uptimeMillis() - sendTime);
+                if (countsInFlight && sendGeneration == generation) {
+                    browseInFlight--;
+                    if (prefetch) prefetchInFlight = false;
+                    sendQueuedBrowseRequests();
+                }
+            }
+        });
+    }
+
+    private void sendQueuedBrowseRequests() {
+        while (browseInFlight < maxBrowseInFlight && !browseQueue.isEmpty()) {
+            send(browseQueue.poll());
+        }
+        if (canSendPrefetch() && !prefetchQueue.isEmpty()) {
+            send(prefetchQueue.poll());
+        }
+    }
+
+    private boolean canSendPrefetch() {
+        return !prefetchInFlight && browseQueue.isEmpty() && browseInFlight < maxBrowseInFlight;
+    }
+
+    private static Invocation remove(ArrayDeque<Invocation> queue, Result result) {
+        for (Iterator<Invocation> it = queue.iterator(); it.hasNext();) {
+            Invocation invocation = it.next();
+            if (invocation.result == result) {
+                it.remove();
+                return invocation;
+            }
+        }
+        return null;
+    }
+
+    /** Latency counters for one lane, in milliseconds. */
+    static class LaneStats {
+        private int sentCount;
+        private long totalWait;
+        private long maxWait;
+        private int completedCount;
+        private long totalRoundTrip;
+        private long maxRoundTrip;
+
+        private void recordWait(long wait) {
+            sentCount++;
+            totalWait += wait;
+            maxWait = Math.max(maxWait, wait);
+        }
+
+        private void recordRoundTrip(long roundTrip) {
+            completedCount++;
+            totalRoundTrip += roundTrip;
+            maxRoundTrip = Math.max(maxRoundTrip, roundTrip);
+        }
+
+        int getSentCount() {
+            return sentCount;
+        }
+
+        long getAverageWait() {
+            return sentCount > 0 ? totalWait / sentCount : 0;
+        }
+
+        long getMaxWait() {
+            return maxWait;
+        }
+
+        int getCompletedCount() {
+            return completedCount;
+        }
+
+        long getAverageRoundTrip() {
+            return completedCount > 0 ? totalRoundTrip / completedCount : 0;
+        }
+
+        long getMaxRoundTrip() {
+            return maxRoundTrip;
+        }
+
+        @Override
+        public String toString() {
+            return "{sent=" + sentCount
+                + ",avgWait=" + getAverageWait()
+                + ",maxWait=" + maxWait
+                + ",completed=" + completedCount
+                + ",avgRoundTrip=" + getAverageRoundTrip()
+                + ",maxRoundTrip=" + maxRoundTrip + "}";
+        }
+    }
+
+    private static class Invocation {
+        final Lane lane;
+        final String method;
+        final Object arg;
+        final Result result;
+        final long invokeTime;
+
+        Invocation(Lane lane, String method, Object arg, Result result, long invokeTime) {
+            this.lane = lane;
+            this.method = method;
+            this.arg = arg;
+            this.result = result;
+            this.invokeTime = invokeTime;
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package com.ryanheise.audioservice;
+
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.RatingCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the metadata, queue and browse results sent to media controllers
+ * within a size budget, so that publishing them can't fail with a
+ * TransactionTooLargeException.
+ * <p>
+ * The guard is off unless a budget is set. A payload is first estimated from
+ * its text and extras, and only if the estimate is over budget is it
+ * measured by writing it to a Parcel. Bitmaps only count for the bytes
+ * written inline, since larger ones are passed in shared memory rather than
+ * in the transaction. A payload over budget is degraded one step at a time
+ * until it fits:
+ * <ol>
+ * <li>Bitmaps are dropped. Controllers can still load the art from its URI.
+ * <li>Extras are dropped, keeping the standard Android keys.
+ * <li>The queue is narrowed around the active item, or the browse result
+ * is truncated.
+ * </ol>
+ * Each step taken is counted and logged rather than letting the payload
+ * crash the service.
+ */
+class PayloadGuard {
+    private static final String TAG = "PayloadGuard";
+
+    enum Step { STRIP_BITMAPS, TRIM_EXTRAS, TRUNCATE }
+
+    // Standard metadata and description extras keys are in this namespace.
+    private static final String ANDROID_KEY_PREFIX = "android.";
+    // Bitmaps up to this size are written inline in a parcel, and larger ones
+    // are passed in shared memory.
+    private static final int BITMAP_INLINE_LIMIT = 16 * 1024;
+    // An upper bound on the parcel bytes of a value besides its text.
+    private static final int VALUE_OVERHEAD = 128;
+    // The estimate of a value that can only be measured by parceling it.
+    private static final long UNKNOWN_SIZE = Integer.MAX_VALUE;
+
+    private volatile int budget;
+    private final int[] stepCounts = new int[Step.values().length];
+
+    PayloadGuard(int budget) {
+        setBudget(budget);
+    }
+
+    /** Sets the budget in bytes, or 0 to pass payloads through unchecked. */
+    void setBudget(int budget) {
+        this.budget = Math.max(0, budget);
+    }
+
+    int getBudget() {
+        return budget;
+    }
+
+    synchronized int getStepCount(Step step) {
+        return stepCounts[step.ordinal()];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("PayloadGuard[budget=").append(budget);
+        for (Step step : Step.values()) {
+            sb.append(",").append(step).append("=").append(stepCounts[step.ordinal()]);
+        }
+        return sb.append("]").toString();
+    }
+
+    MediaMetadataCompat fitMetadata(MediaMetadataCompat metadata) {
+        if (metadata == null || budget <= 0 || estimate(metadata) <= budget) return metadata;
+        int size = sizeOf(metadata);
+        if (size <= budget) return metadata;
+        metadata = copyMetadata(metadata, true);
+        size = record(Step.STRIP_BITMAPS, "metadata", size, sizeOf(metadata));
+        if (size <= budget) return metadata;
+        metadata = copyMetadata(metadata, false);
+        size = record(Step.TRIM_EXTRAS, "metadata", size, sizeOf(metadata));
+        if (size > budget) {
+            Log.w(TAG, "metadata is still " + size + " bytes after degrading");
+        }
+        return metadata;
+    }
+
+    /**
+     * Fits a queue to the budget. If it must be narrowed, the items nearest
+     * to activeIndex are kept.
+     */
+    List<MediaSessionCompat.QueueItem> fitQueue(List<MediaSessionCompat.QueueItem> queue, int activeIndex) {
+        if (budget <= 0 || estimateQueue(queue) <= budget) return queue;
+        int size = sizeOf(queue);
+        if (size <= budget) return queue;
+        List<MediaSessionCompat.QueueItem> degraded = new ArrayList<>(queue.size());
+        for (MediaSessionCompat.QueueItem item : queue) {
+            degraded.add(new MediaSessionCompat.QueueItem(copyDescription(item.getDescription(), true), item.getQueueId()));
+        }
+        size = record(Step.STRIP_BITMAPS, "queue", size, sizeOf(degraded));
+        if (size <= budget) return degraded;
+        for (int i = 0; i < degraded.size(); i++) {
+            MediaSessionCompat.QueueItem item = degraded.get(i);
+            degraded.set(i, new MediaSessionCompat.QueueItem(copyDescription(item.getDescription(), false), item.getQueueId()));
+        }
+        size = record(Step.TRIM_EXTRAS, "queue", size, sizeOf(degraded));
+        if (size <= budget) return degraded;
+        activeIndex = Math.max(0, Math.min(activeIndex, degraded.size() - 1));
+        int trimmedSize = size;
+        int count = degraded.size();
+        List<MediaSessionCompat.QueueItem> window = degraded;
+        while (size > budget && count > 1) {
+            count /= 2;
+            int start = Math.max(0, Math.min(activeIndex - count / 2, degraded.size() - count));
+            window = degraded.subList(start, start + count);
+            size = sizeOf(window);
+        }
+        record(Step.TRUNCATE, "queue", trimmedSize, size);
+        return new ArrayList<>(window);
+    }
+
+    List<MediaBrowserCompat.MediaItem> fitMediaItems(List<MediaBrowserCompat.MediaItem> items) {
+        if (budget <= 0 || estimateMediaItems(items) <= budget) return items;
+        int size = sizeOf(items);
+        if (size <= budget) return items;
+        List<MediaBrowserCompat.MediaItem> degraded = new ArrayList<>(items.size());
+        for (MediaBrowserCompat.MediaItem item : items) {
+            degraded.add(new MediaBrowserCompat.MediaItem(copyDescription(item.getDescription(), true), item.getFlags()));
+        }
+        size = record(Step.STRIP_BITMAPS, "browse result", size, sizeOf(degraded));
+        if (size <= budget) return degraded;
+        for (int i = 0; i < degraded.size(); i++) {
+            MediaBrowserCompat.MediaItem item = degraded.get(i);
+            degraded.set(i, new MediaBrowserCompat.MediaItem(copyDescription(item.getDescription(), false), item.getFlags()));
+        }
+        size = record(Step.TRIM_EXTRAS, "browse result", size, sizeOf(degraded));
+        if (size <= budget) return degraded;
+        int trimmedSize = size;
+        int count = degraded.size();
+        List<MediaBrowserCompat.MediaItem> page = degraded;
+        while (size > budget && count > 1) {
+            count /= 2;
+            page = degraded.subList(0, count);
+            size = sizeOf(page);
+        }
+        record(Step.TRUNCATE, "browse result", trimmedSize, size);
+        return new ArrayList<>(page);
+    }
+
+    private synchronized int record(Step step, String payload, int oldSize, int newSize) {
+        stepCounts[step.ordinal()]++;
+        Log.w(TAG, payload + " of " + oldSize + " bytes exceeds the budget of " + budget
+                + " bytes, " + step + " reduced it to " + newSize + " bytes");
+        return newSize;
+    }
+
+    private static int sizeOf(List<? extends Parcelable> list) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeTypedList(list);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static int sizeOf(Parcelable parcelable) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcelable.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Estimates the parcel size of metadata from above, or returns
+     * UNKNOWN_SIZE if it holds a value that can't be estimated.
+     */
+    static long estimate(MediaMetadataCompat metadata) {
+        return estimateBundle(metadata.getBundle());
+    }
+
+    static long estimateQueue(List<MediaSessionCompat.QueueItem> queue) {
+        long size = 4;
+        for (MediaSessionCompat.QueueItem item : queue) {
+            size += VALUE_OVERHEAD + estimateDescription(item.getDescription());
+        }
+        return size;
+    }
+
+    static long estimateMediaItems(List<MediaBrowserCompat.MediaItem> items) {
+        long size = 4;
+        for (MediaBrowserCompat.MediaItem item : items) {
+            size += VALUE_OVERHEAD + estimateDescription(item.getDescription());
+        }
+        return size;
+    }
+
+    private static long estimateDescription(MediaDescriptionCompat description) {
+        return estimateText(description.getMediaId())
+                + estimateText(description.getTitle())
+                + estimateText(description.getSubtitle())
+                + estimateText(description.getDescription())
+                + estimateUri(description.getIconUri())
+                + estimateUri(description.getMediaUri())
+                + estimateBitmap(description.getIconBitmap())
+                + estimateBundle(description.getExtras());
+    }
+
+    private static long estimateText(CharSequence text) {
+        if (text == null) return 4;
+        // Styled text is written with its spans.
+        if (!(text instanceof String)) return UNKNOWN_SIZE;
+        return 2L * text.length() + 12;
+    }
+
+    private static long estimateUri(Uri uri) {
+        // A hierarchical URI is written in parts, each with its own header.
+        return uri != null ? 4L * uri.toString().length() + 32 : 4;
+    }
+
+    private static long estimateBitmap(Bitmap bitmap) {
+        return bitmap != null ? VALUE_OVERHEAD + Math.min(bitmap.getByteCount(), BITMAP_INLINE_LIMIT) : 4;
+    }
+
+    private static long estimateBundle(Bundle bundle) {
+        if (bundle == null) return 4;
+        long size = 12;
+        for (String key : bundle.keySet()) {
+            @SuppressWarnings("deprecation")
+            Object value = bundle.get(key);
+            size += estimateText(key) + 4;
+            if (value == null) {
+                continue;
+            } else if (value instanceof Long || value instanceof Double) {
+                size += 8;
+            } else if (value instanceof Integer || value instanceof Boolean || value instanceof Float) {
+                size += 4;
+            } else if (value instanceof CharSequence) {
+                size += estimateText((CharSequence)value);
+            } else if (value instanceof Bitmap) {
+                size += estimateBitmap((Bitmap)value);
+            } else if (value instanceof Bundle) {
+                size += estimateBundle((Bundle)value);
+            } else if (value instanceof RatingCompat) {
+                size += VALUE_OVERHEAD;
+            } else {
+                return UNKNOWN_SIZE;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Copies metadata without its bitmaps, and without any non-standard keys
+     * unless keepExtras is set.
+     */
+    private static MediaMetadataCompat copyMetadata(MediaMetadataCompat metadata, boolean keepExtras) {
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder();
+        Bundle bundle = metadata.getBundle();
+        for (String key : bundle.keySet()) {
+            if (!keepExtras && !key.startsWith(ANDROID_KEY_PREFIX)) continue;
+            @SuppressWarnings("deprecation")
+            Object value = bundle.get(key);
+            if (value instanceof Long) {
+                builder.putLong(key, (Long)value);
+            } else if (value instanceof CharSequence) {
+                builder.putText(key, (CharSequence)value);
+            } else if (value != null && !(value instanceof Bitmap)) {
+                // The only other value type in metadata is a rating.
+                builder.putRating(key, metadata.getRating(key));
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Copies a description without its bitmap, and without any non-standard
+     * extras unless keepExtras is set.
+     */
+    private static MediaDescriptionCompat copyDescription(MediaDescriptionCompat description, boolean keepExtras) {
+        Bundle extras = description.getExtras();
+        if (!keepExtras && extras != null) {
+            Bundle standardExtras = new Bundle();
+            for (String key : extras.keySet()) {
+                if (key.startsWith(ANDROID_KEY_PREFIX)) {
+                    @SuppressWarnings("deprecation")
+                    Object value = extras.get(key);
+                    if (value instanceof Long) standardExtras.putLong(key, (Long)value);
+                    else if (value instanceof Integer) standardExtras.putInt(key, (Integer)value);
+                    else if (value instanceof String) standardExtras.putString(key, (String)value);
+                }
+            }
+            extras = standardExtras.isEmpty() ? null : standardExtras;
+        }
+        return new MediaDescriptionCompat.Builder()
+                .setMediaId(description.getMediaId())
+                .setTitle(description.getTitle())
+                .setSubtitle(description.getSubtitle())
+                .setDescription(description.getDescription())
+                .setIconUri(description.getIconUri())
+                .setMediaUri(description.getMediaUri())
+                .setExtras(extras)
+                .build();
+    }
+}
@@ -0,0 +1,170 @@
+package com.ryanheise.audioservice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Set;
+
+import io.flutter.plugin.common.MethodChannel;
+
+/**
+ * A bounded queue of the method invocations made before the Dart handler is
+ * ready, which coalesces invocations that a late delivery would make stale:
+ * <ul>
+ * <li>Setters such as seek and setSpeed keep only the last invocation.</li>
+ * <li>A play followed by a pause cancel each other out, and otherwise only
+ * the last of play and pause is kept.</li>
+ * <li>Queue edits and invocations awaiting a result are never dropped.</li>
+ * </ul>
+ * When the queue is full, the oldest invocation that may be dropped is
+ * dropped to make room.
+ */
+class PendingMethodQueue {
+    static final int DEFAULT_CAPACITY = 64;
+
+    private static final Set<String> LAST_WINS_METHODS = new HashSet<>(Arrays.asList(
+            "seek",
+            "setSpeed",
+            "androidSetRemoteVolume",
+            "setRepeatMode",
+            "setShuffleMode",
+            "setCaptioningEnabled"));
+    private static final Set<String> NEVER_DROP_METHODS = new HashSet<>(Arrays.asList(
+            "addQueueItem",
+            "insertQueueItem",
+            "removeQueueItem",
+            "removeQueueItemAt"));
+
+    private final int capacity;
+    private final LinkedList<AudioServicePlugin.MethodInvocation> invocations = new LinkedList<>();
+    private int droppedCount;
+    private int mergedCount;
+
+    PendingMethodQueue(int capacity) {
+        this.capacity = capacity;
+    }
+
+    void add(AudioServicePlugin.MethodInvocation invocation) {
+        String method = invocation.method;
+        if (invocation.result == null) {
+            if (LAST_WINS_METHODS.contains(method)) {
+                if (removeLast(method) != null) {
+                    mergedCount++;
+                }
+            } else if (isPlayOrPause(method)) {
+                AudioServicePlugin.MethodInvocation previous = removeLastPlayOrPause();
+                if (previous != null) {
+                    mergedCount++;
+                    if (previous.method.equals("play") && method.equals("pause")) {
+                        mergedCount++;
+                        return;
+                    }
+                }
+            }
+        }
+        if (invocations.size() >= capacity) {
+            dropOldest();
+        }
+        invocations.add(invocation);
+    }
+
+    /**
+     * Removes the invocation awaiting the given result, returning whether it
+     * was pending.
+     */
+    boolean remove(MethodChannel.Result result) {
+        for (Iterator<AudioServicePlugin.MethodInvocation> it = invocations.iterator(); it.hasNext();) {
+            if (it.next().result == result) {
+                it.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the invocation awaiting the given result from the prefetch lane
+     * to the browse lane, keeping its place in the queue.
+     */
+    void prioritize(MethodChannel.Result result) {
+        for (ListIterator<AudioServicePlugin.MethodInvocation> it = invocations.listIterator(); it.hasNext();) {
+            AudioServicePlugin.MethodInvocation invocation = it.next();
+            if (invocation.result == result && invocation.lane == OutboundDispatcher.Lane.PREFETCH) {
+                it.set(new AudioServicePlugin.MethodInvocation(OutboundDispatcher.Lane.BROWSE,
+                        invocation.method, invocation.arg, invocation.result, invocation.invokeTime));
+                return;
+            }
+        }
+    }
+
+    /** Removes and returns all pending invocations in order. */
+    List<AudioServicePlugin.MethodInvocation> drain() {
+        List<AudioServicePlugin.MethodInvocation> drained = new ArrayList<>(invocations);
+        invocations.clear();
+        return drained;
+    }
+
+    int size() {
+        return invocations.size();
+    }
+
+    int getDroppedCount() {
+        return droppedCount;
+    }
+
+    int getMergedCount() {
+        return mergedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "PendingMethodQueue[size=" + invocations.size() + "/" + capacity
+            + ",dropped=" + droppedCount
+            + ",merged=" + mergedCount + "]";
+    }
+
+    private static boolean isPlayOrPause(String method) {
+        return method.equals("play") || method.equals("pause");
+    }
+
+    private static boolean canDrop(AudioServicePlugin.MethodInvocation invocation) {
+        return invocation.result == null && !NEVER_DROP_METHODS.contains(invocation.method);
+    }
+
+    private AudioServicePlugin.MethodInvocation removeLast(String method) {
+        for (Iterator<AudioServicePlugin.MethodInvocation> it = invocations.descendingIterator(); it.hasNext();) {
+            AudioServicePlugin.MethodInvocation invocation = it.next();
+            if (invocation.result == null && invocation.method.equals(method)) {
+                it.remove();
+                return invocation;
+            }
+        }
+        return null;
+    }
+
+    private AudioServicePlugin.MethodInvocation removeLastPlayOrPause() {
+        for (Iterator<AudioServicePlugin.MethodInvocation> it = invocations.descendingIterator(); it.hasNext();) {
+            AudioServicePlugin.MethodInvocation invocation = it.next();
+            if (invocation.result == null && isPlayOrPause(invocation.method)) {
+                it.remove();
+                return invocation;
+            }
+        }
+        return null;
+    }
+
+    private void dropOldest() {
+        for (Iterator<AudioServicePlugin.MethodInvocation> it = invocations.iterator(); it.hasNext();) {
+            if (canDrop(it.next())) {
+                it.remove();
+                droppedCount++;
+                return;
+            }
+        }
+        // Everything pending must be delivered, so let the queue grow.
+    }
+}
@@ -0,0 +1,164 @@
+package com.ryanheise.audioservice;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An inverted index over the title, artist, album and genre of the media
+ * items that have passed through the service, so that searches from media
+ * browsers and voice commands can be answered without a round trip to the
+ * Dart audio handler.
+ * <p>
+ * Text is normalized to lower case without diacritics and split into
+ * tokens of letters and digits. Each query token matches index tokens that
+ * it is a prefix of, so that partial words typed in a browser still match.
+ * An item matches a query if every query token matches one of its tokens,
+ * and items are ranked by the fields they matched in, with whole token
+ * matches ranked above prefix matches. The index is bounded by the number of
+ * items, evicting the least recently indexed or matched.
+ */
+class SearchIndex {
+    static final int DEFAULT_MAX_ITEMS = 10000;
+
+    private static final int WEIGHT_TITLE = 8;
+    private static final int WEIGHT_ARTIST = 4;
+    private static final int WEIGHT_ALBUM = 2;
+    private static final int WEIGHT_GENRE = 1;
+
+    private final int maxItems;
+    // The weight of each token of each item by media ID, in least recently
+    // used order.
+    private final LinkedHashMap<String, Map<String, Integer>> items = new LinkedHashMap<>(16, 0.75f, true);
+    // The media IDs with each token, sorted so that the tokens with a given
+    // prefix are a contiguous range.
+    private final TreeMap<String, Set<String>> postings = new TreeMap<>();
+    private int queryCount;
+
+    SearchIndex(int maxItems) {
+        this.maxItems = maxItems;
+    }
+
+    synchronized void put(String mediaId, String title, String artist, String album, String genre) {
+        Map<String, Integer> tokens = new HashMap<>();
+        addTokens(tokens, genre, WEIGHT_GENRE);
+        addTokens(tokens, album, WEIGHT_ALBUM);
+        addTokens(tokens, artist, WEIGHT_ARTIST);
+        addTokens(tokens, title, WEIGHT_TITLE);
+        Map<String, Integer> oldTokens = items.get(mediaId);
+        if (tokens.equals(oldTokens)) return;
+        if (oldTokens != null) removePostings(mediaId, oldTokens);
+        items.put(mediaId, tokens);
+        for (String token : tokens.keySet()) {
+            Set<String> mediaIds = postings.get(token);
+            if (mediaIds == null) {
+                mediaIds = new HashSet<>();
+                postings.put(token, mediaIds);
+            }
+            mediaIds.add(mediaId);
+        }
+        if (items.size() > maxItems) {
+            Iterator<Map.Entry<String, Map<String, Integer>>> eldest = items.entrySet().iterator();
+            Map.Entry<String, Map<String, Integer>> entry = eldest.next();
+            removePostings(entry.getKey(), entry.getValue());
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Returns the media IDs of up to limit items that match the query, best
+     * match first.
+     */
+    synchronized List<String> search(String query, int limit) {
+        queryCount++;
+        List<String> queryTokens = tokenize(query);
+        if (queryTokens.isEmpty()) return new ArrayList<>();
+        Map<String, Integer> scores = null;
+        for (String queryToken : queryTokens) {
+            // The best score of this query token for each item it matches.
+            Map<String, Integer> tokenScores = new HashMap<>();
+            for (Map.Entry<String, Set<String>> posting : postings.subMap(queryToken, true, queryToken + Character.MAX_VALUE, false).entrySet()) {
+                boolean whole = posting.getKey().equals(queryToken);
+                for (String mediaId : posting.getValue()) {
+                    int weight = items.get(mediaId).get(posting.getKey());
+                    int score = whole ? weight * 2 : weight;
+                    Integer best = tokenScores.get(mediaId);
+                    if (best == null || score > best) tokenScores.put(mediaId, score);
+                }
+            }
+            if (scores == null) {
+                scores = tokenScores;
+            } else {
+                // Keep only the items that matched every token so far.
+                Map<String, Integer> matched = new HashMap<>();
+                for (Map.Entry<String, Integer> entry : scores.entrySet()) {
+                    Integer score = tokenScores.get(entry.getKey());
+                    if (score != null) matched.put(entry.getKey(), entry.getValue() + score);
+                }
+                scores = matched;
+            }
+            if (scores.isEmpty()) break;
+        }
+        final Map<String, Integer> finalScores = scores;
+        List<String> mediaIds = new ArrayList<>(finalScores.keySet());
+        Collections.sort(mediaIds, (a, b) -> finalScores.get(b) - finalScores.get(a));
+        return mediaIds.size() > limit ? new ArrayList<>(mediaIds.subList(0, limit)) : mediaIds;
+    }
+
+    synchronized void clear() {
+        items.clear();
+        postings.clear();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SearchIndex[items=" + items.size()
+            + ",tokens=" + postings.size()
+            + ",queries=" + queryCount + "]";
+    }
+
+    private void removePostings(String mediaId, Map<String, Integer> tokens) {
+        for (String token : tokens.keySet()) {
+            Set<String> mediaIds = postings.get(token);
+            if (mediaIds == null) continue;
+            mediaIds.remove(mediaId);
+            if (mediaIds.isEmpty()) postings.remove(token);
+        }
+    }
+
+    private static void addTokens(Map<String, Integer> tokens, String text, int weight) {
+        for (String token : tokenize(text)) {
+            Integer oldWeight = tokens.get(token);
+            tokens.put(token, oldWeight == null ? weight : Math.max(oldWeight, weight));
+        }
+    }
+
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) return tokens;
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        StringBuilder token = new StringBuilder();
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK && token.length() > 0) {
+                // Diacritics separated by NFD are dropped without splitting
+                // the token.
+                tokens.add(token.toString());
+                token.setLength(0);
+            }
+        }
+        if (token.length() > 0) tokens.add(token.toString());
+        return tokens;
+    }
+}
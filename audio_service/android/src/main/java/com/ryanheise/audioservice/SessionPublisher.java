@@ -0,0 +1,166 @@
+package com.ryanheise.audioservice;
+
+import android.media.Rating;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.RatingCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Publishes the metadata, queue and modes to a media session, skipping any
+ * update whose content is the same as what was last published. Every
+ * published update is sent to the system and to each connected controller,
+ * so a no-op update still costs a round of IPC.
+ * <p>
+ * Bitmaps are compared by identity since the art is cached by URI, and
+ * queue item descriptions are first compared by identity since unchanged
+ * items reuse their descriptions.
+ */
+class SessionPublisher {
+    private final MediaSessionCompat mediaSession;
+    private MediaMetadataCompat metadata;
+    private boolean metadataPublished;
+    private List<MediaSessionCompat.QueueItem> queue;
+    private boolean queuePublished;
+    private int repeatMode = -1;
+    private int shuffleMode = -1;
+    private Boolean captioningEnabled;
+    private int suppressedCount;
+
+    SessionPublisher(MediaSessionCompat mediaSession) {
+        this.mediaSession = mediaSession;
+    }
+
+    void setMetadata(MediaMetadataCompat metadata) {
+        if (metadataPublished && metadataEquals(metadata, this.metadata)) {
+            suppressedCount++;
+            return;
+        }
+        mediaSession.setMetadata(metadata);
+        this.metadata = metadata;
+        metadataPublished = true;
+    }
+
+    void setQueue(List<MediaSessionCompat.QueueItem> queue) {
+        if (queuePublished && queueEquals(queue, this.queue)) {
+            suppressedCount++;
+            return;
+        }
+        mediaSession.setQueue(queue);
+        this.queue = queue;
+        queuePublished = true;
+    }
+
+    void setRepeatMode(int repeatMode) {
+        if (repeatMode == this.repeatMode) {
+            suppressedCount++;
+            return;
+        }
+        mediaSession.setRepeatMode(repeatMode);
+        this.repeatMode = repeatMode;
+    }
+
+    void setShuffleMode(int shuffleMode) {
+        if (shuffleMode == this.shuffleMode) {
+            suppressedCount++;
+            return;
+        }
+        mediaSession.setShuffleMode(shuffleMode);
+        this.shuffleMode = shuffleMode;
+    }
+
+    void setCaptioningEnabled(boolean captioningEnabled) {
+        if (this.captioningEnabled != null && captioningEnabled == this.captioningEnabled) {
+            suppressedCount++;
+            return;
+        }
+        mediaSession.setCaptioningEnabled(captioningEnabled);
+        this.captioningEnabled = captioningEnabled;
+    }
+
+    int getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    @Override
+    public String toString() {
+        return "SessionPublisher[suppressed=" + suppressedCount + "]";
+    }
+
+    private static boolean metadataEquals(MediaMetadataCompat a, MediaMetadataCompat b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        return bundleEquals(a.getBundle(), b.getBundle());
+    }
+
+    private static boolean queueEquals(List<MediaSessionCompat.QueueItem> a, List<MediaSessionCompat.QueueItem> b) {
+        if (a == b) return true;
+        if (a == null || b == null || a.size() != b.size()) return false;
+        for (int i = 0; i < a.size(); i++) {
+            MediaSessionCompat.QueueItem itemA = a.get(i);
+            MediaSessionCompat.QueueItem itemB = b.get(i);
+            if (itemA.getQueueId() != itemB.getQueueId()) return false;
+            if (!descriptionEquals(itemA.getDescription(), itemB.getDescription())) return false;
+        }
+        return true;
+    }
+
+    private static boolean descriptionEquals(MediaDescriptionCompat a, MediaDescriptionCompat b) {
+        if (a == b) return true;
+        return Objects.equals(a.getMediaId(), b.getMediaId())
+            && textEquals(a.getTitle(), b.getTitle())
+            && textEquals(a.getSubtitle(), b.getSubtitle())
+            && textEquals(a.getDescription(), b.getDescription())
+            && a.getIconBitmap() == b.getIconBitmap()
+            && Objects.equals(a.getIconUri(), b.getIconUri())
+            && Objects.equals(a.getMediaUri(), b.getMediaUri())
+            && bundleEquals(a.getExtras(), b.getExtras());
+    }
+
+    private static boolean textEquals(CharSequence a, CharSequence b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        return a.toString().equals(b.toString());
+    }
+
+    private static boolean isRating(Object value) {
+        // The metadata holds the framework Rating on API 19 and above.
+        return value instanceof RatingCompat
+            || (Build.VERSION.SDK_INT >= 19 && value instanceof Rating);
+    }
+
+    private static boolean bundleEquals(Bundle a, Bundle b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        Set<String> keys = a.keySet();
+        if (!keys.equals(b.keySet())) return false;
+        for (String key : keys) {
+            @SuppressWarnings("deprecation")
+            Object valueA = a.get(key);
+            @SuppressWarnings("deprecation")
+            Object valueB = b.get(key);
+            if (valueA instanceof Bundle && valueB instanceof Bundle) {
+                if (!bundleEquals((Bundle)valueA, (Bundle)valueB)) return false;
+            } else if (valueA instanceof CharSequence && valueB instanceof CharSequence) {
+                if (!textEquals((CharSequence)valueA, (CharSequence)valueB)) return false;
+            } else if (isRating(valueA) && isRating(valueB)) {
+                // Ratings don't implement equals, but describe their style
+                // and value in toString.
+                if (!valueA.toString().equals(valueB.toString())) return false;
+            } else if (valueA instanceof Number || valueA instanceof Boolean) {
+                if (!valueA.equals(valueB)) return false;
+            } else if (valueA != valueB) {
+                // Bitmaps and other parcelables are only equal if
+                // they are the same instance.
+                return false;
+            }
+        }
+        return true;
+    }
+}
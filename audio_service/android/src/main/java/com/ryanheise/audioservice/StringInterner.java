@@ -0,0 +1,62 @@
+package com.ryanheise.audioservice;
+
+import android.util.LruCache;
+
+/**
+ * A bounded table of canonical instances of strings that repeat across many
+ * media items, such as artists, albums and genres. A large queue usually has
+ * only a few hundred distinct values for these fields, so sharing one
+ * instance per value avoids keeping thousands of duplicate copies alive in
+ * the metadata and the metadata cache.
+ * <p>
+ * The least recently used values are dropped once the table is full.
+ */
+class StringInterner {
+    static final int DEFAULT_CAPACITY = 2048;
+
+    private static final int STRING_OVERHEAD = 40;
+
+    private final LruCache<String, String> strings;
+    private long savedBytes;
+
+    StringInterner(int capacity) {
+        strings = new LruCache<>(capacity);
+    }
+
+    /**
+     * Returns the canonical instance of a string equal to s, which is s
+     * itself if no equal string is in the table.
+     */
+    synchronized String intern(String s) {
+        if (s == null) return null;
+        String canonical = strings.get(s);
+        if (canonical == null) {
+            strings.put(s, s);
+            return s;
+        }
+        if (canonical != s) {
+            savedBytes += STRING_OVERHEAD + 2 * s.length();
+        }
+        return canonical;
+    }
+
+    /**
+     * Returns the approximate number of bytes of duplicate strings that
+     * could be released because the canonical instance was used instead.
+     */
+    synchronized long getSavedBytes() {
+        return savedBytes;
+    }
+
+    synchronized void clear() {
+        strings.evictAll();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "StringInterner[size=" + strings.size() + "/" + strings.maxSize()
+            + ",hits=" + strings.hitCount()
+            + ",misses=" + strings.missCount()
+            + ",savedBytes=" + savedBytes + "]";
+    }
+}
@@ -0,0 +1,83 @@
+package com.ryanheise.audioservice;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+
+import android.os.SystemClock;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.android.controller.ServiceController;
+import org.robolectric.annotation.Config;
+
+import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.embedding.engine.FlutterEngineCache;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class AudioServiceTest {
+    private static final List<MediaControl> CONTROLS = Arrays.asList(
+            new MediaControl("drawable/audio_service_pause", "Pause", PlaybackStateCompat.ACTION_PAUSE, null),
+            new MediaControl("drawable/audio_service_stop", "Custom", 0, new CustomMediaAction("custom", null)));
+    private static final int[] COMPACT_ACTION_INDICES = { 0 };
+
+    private ServiceController<AudioService> controller;
+    private AudioService service;
+
+    @Before
+    public void setUp() {
+        // The service warms up the engine on creation, which can't run here.
+        FlutterEngineCache.getInstance().put(AudioServicePlugin.getFlutterEngineId(), mock(FlutterEngine.class));
+        controller = Robolectric.buildService(AudioService.class);
+        service = controller.create().get();
+    }
+
+    @After
+    public void tearDown() {
+        controller.destroy();
+        FlutterEngineCache.getInstance().remove(AudioServicePlugin.getFlutterEngineId());
+    }
+
+    @Test
+    public void positionOnlyUpdatesReuseTheStateBuilderAndCustomActions() {
+        setPosition(CONTROLS, 0);
+        PlaybackStateCompat.Builder stateBuilder = service.getStateBuilder();
+        List<PlaybackStateCompat.CustomAction> customActions = service.getCustomActions();
+
+        for (int i = 1; i <= 100; i++) {
+            setPosition(CONTROLS, i * 1000);
+        }
+
+        assertSame(stateBuilder, service.getStateBuilder());
+        assertSame(customActions, service.getCustomActions());
+        assertEquals(1, customActions.size());
+    }
+
+    @Test
+    public void changedControlsRebuildTheStateBuilder() {
+        setPosition(CONTROLS, 0);
+        PlaybackStateCompat.Builder stateBuilder = service.getStateBuilder();
+
+        setPosition(CONTROLS.subList(0, 1), 1000);
+
+        assertNotSame(stateBuilder, service.getStateBuilder());
+        assertEquals(0, service.getCustomActions().size());
+    }
+
+    private void setPosition(List<MediaControl> controls, long position) {
+        // An idle state doesn't post a notification.
+        service.setState(controls, PlaybackStateCompat.ACTION_PLAY, COMPACT_ACTION_INDICES,
+                AudioProcessingState.idle, false, position, position, 1.0f,
+                SystemClock.elapsedRealtime(), null, null, 0, 0, false, null);
+    }
+}
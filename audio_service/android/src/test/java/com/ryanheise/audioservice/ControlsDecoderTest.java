@@ -0,0 +1,114 @@
+package com.ryanheise.audioservice;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class ControlsDecoderTest {
+    private static final int UPDATE_COUNT = 10000;
+    // Comparing the raw controls allocates a few map iterators, but nothing
+    // that grows with the controls themselves.
+    private static final long MAX_BYTES_PER_UPDATE = 256;
+
+    @Test
+    public void reusesParsedControlsWhileRawControlsAreEqual() {
+        ControlsDecoder decoder = new ControlsDecoder();
+        decoder.decode(rawControls(), rawSystemActions(), rawCompactActionIndices());
+        List<MediaControl> controls = decoder.getControls();
+        long actionBits = decoder.getActionBits();
+        int[] compactActionIndices = decoder.getCompactActionIndices();
+
+        // Each update from Dart decodes to new but equal raw values.
+        decoder.decode(rawControls(), rawSystemActions(), rawCompactActionIndices());
+
+        assertSame(controls, decoder.getControls());
+        assertEquals(actionBits, decoder.getActionBits());
+        assertSame(compactActionIndices, decoder.getCompactActionIndices());
+    }
+
+    @Test
+    public void parsesChangedControls() {
+        ControlsDecoder decoder = new ControlsDecoder();
+        decoder.decode(rawControls(), rawSystemActions(), rawCompactActionIndices());
+        List<MediaControl> controls = decoder.getControls();
+        int[] compactActionIndices = decoder.getCompactActionIndices();
+
+        List<Map<?, ?>> changedControls = rawControls();
+        changedControls.remove(0);
+        decoder.decode(changedControls, rawSystemActions(), Arrays.<Object>asList(0));
+
+        assertNotSame(controls, decoder.getControls());
+        assertEquals(1, decoder.getControls().size());
+        assertEquals(1L << 2 | 1L << 3, decoder.getActionBits());
+        assertNotSame(compactActionIndices, decoder.getCompactActionIndices());
+        assertArrayEquals(new int[] { 0 }, decoder.getCompactActionIndices());
+    }
+
+    @Test
+    public void positionOnlyUpdatesAllocateAlmostNothing() {
+        java.lang.management.ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean)threadBean;
+        assumeTrue(allocationBean.isThreadAllocatedMemorySupported() && allocationBean.isThreadAllocatedMemoryEnabled());
+
+        List<List<Map<?, ?>>> controlUpdates = new ArrayList<>(UPDATE_COUNT);
+        List<List<Integer>> systemActionUpdates = new ArrayList<>(UPDATE_COUNT);
+        List<List<Object>> compactActionIndexUpdates = new ArrayList<>(UPDATE_COUNT);
+        for (int i = 0; i < UPDATE_COUNT; i++) {
+            controlUpdates.add(rawControls());
+            systemActionUpdates.add(rawSystemActions());
+            compactActionIndexUpdates.add(rawCompactActionIndices());
+        }
+        ControlsDecoder decoder = new ControlsDecoder();
+        // Warm up so that class loading and compilation aren't counted.
+        for (int i = 0; i < UPDATE_COUNT; i++) {
+            decoder.decode(controlUpdates.get(i), systemActionUpdates.get(i), compactActionIndexUpdates.get(i));
+        }
+
+        @SuppressWarnings("deprecation")
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < UPDATE_COUNT; i++) {
+            decoder.decode(controlUpdates.get(i), systemActionUpdates.get(i), compactActionIndexUpdates.get(i));
+        }
+        long bytesPerUpdate = (allocationBean.getThreadAllocatedBytes(threadId) - before) / UPDATE_COUNT;
+
+        assertTrue("allocated " + bytesPerUpdate + " bytes per update", bytesPerUpdate <= MAX_BYTES_PER_UPDATE);
+    }
+
+    private static List<Map<?, ?>> rawControls() {
+        List<Map<?, ?>> rawControls = new ArrayList<>();
+        rawControls.add(rawControl("drawable/audio_service_pause", "Pause", 1));
+        rawControls.add(rawControl("drawable/audio_service_stop", "Stop", 3));
+        return rawControls;
+    }
+
+    private static Map<?, ?> rawControl(String androidIcon, String label, int action) {
+        Map<String, Object> rawControl = new HashMap<>();
+        rawControl.put("androidIcon", androidIcon);
+        rawControl.put("label", label);
+        rawControl.put("action", action);
+        rawControl.put("customAction", null);
+        return rawControl;
+    }
+
+    private static List<Integer> rawSystemActions() {
+        return new ArrayList<>(Arrays.asList(2));
+    }
+
+    private static List<Object> rawCompactActionIndices() {
+        return new ArrayList<>(Arrays.<Object>asList(0, 1));
+    }
+}
@@ -0,0 +1,126 @@
+package com.ryanheise.audioservice;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Bundle;
+import android.support.v4.media.MediaBrowserCompat;
+import android.support.v4.media.MediaMetadataCompat;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 33)
+public class ExtrasTest {
+    private static final int LARGE_PAYLOAD_SIZE = 1000;
+    private static final int BENCHMARK_ROUNDS = 200;
+
+    @Test
+    public void roundTripsTypedExtras() {
+        Map<String, Object> extras = extras(0, 5);
+
+        Map<String, Object> map = Extras.toMap(Extras.toBundle(extras), Extras.bundleTypes(extras));
+
+        assertEquals(extras, map);
+    }
+
+    @Test
+    public void readsMismatchedTypesWithTheGenericLookup() {
+        Bundle options = new Bundle();
+        options.putString(MediaBrowserCompat.EXTRA_PAGE, "first");
+        options.putInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, 20);
+
+        Map<String, Object> map = Extras.toMap(options, Extras.BROWSE_OPTION_TYPES);
+
+        assertEquals("first", map.get(MediaBrowserCompat.EXTRA_PAGE));
+        assertEquals(20, map.get(MediaBrowserCompat.EXTRA_PAGE_SIZE));
+    }
+
+    @Test
+    public void readsMetadataWithTheTypesOfItsOwnExtras() {
+        // The same key has a different type in each item.
+        Map<String, Object> extras1 = new HashMap<>();
+        extras1.put("key", 1);
+        Map<String, Object> extras2 = new HashMap<>();
+        extras2.put("key", "one");
+
+        Map<String, Object> map1 = Extras.metadataToMap(metadata("1", extras1).getBundle(), extras1);
+        Map<String, Object> map2 = Extras.metadataToMap(metadata("2", extras2).getBundle(), extras2);
+
+        assertEquals(1L, map1.get("key"));
+        assertEquals("one", map2.get("key"));
+        assertEquals("1", map1.get(MediaMetadataCompat.METADATA_KEY_MEDIA_ID));
+        assertEquals(180000L, map1.get(MediaMetadataCompat.METADATA_KEY_DURATION));
+    }
+
+    @Test
+    public void benchmarkLargeExtrasPayloads() {
+        Map<String, Object> extras = extras(0, LARGE_PAYLOAD_SIZE);
+        Map<String, Integer> types = Extras.bundleTypes(extras);
+        Bundle bundle = Extras.toBundle(extras);
+        Bundle metadataBundle = metadata("1", extras).getBundle();
+        assertEquals(Extras.toMap(bundle), Extras.toMap(bundle, types));
+        assertEquals(Extras.metadataToMap(metadataBundle, null), Extras.metadataToMap(metadataBundle, extras));
+
+        long toBundleNanos = 0;
+        long genericNanos = 0;
+        long typedNanos = 0;
+        long genericMetadataNanos = 0;
+        long typedMetadataNanos = 0;
+        for (int i = 0; i < BENCHMARK_ROUNDS; i++) {
+            long start = System.nanoTime();
+            Extras.toBundle(extras);
+            toBundleNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Extras.toMap(bundle);
+            genericNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Extras.toMap(bundle, types);
+            typedNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Extras.metadataToMap(metadataBundle, null);
+            genericMetadataNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Extras.metadataToMap(metadataBundle, extras);
+            typedMetadataNanos += System.nanoTime() - start;
+        }
+        System.out.println("Extras with " + LARGE_PAYLOAD_SIZE + " keys, microseconds per conversion:"
+                + " toBundle=" + toBundleNanos / BENCHMARK_ROUNDS / 1000
+                + " toMap generic=" + genericNanos / BENCHMARK_ROUNDS / 1000
+                + " typed=" + typedNanos / BENCHMARK_ROUNDS / 1000
+                + " metadataToMap generic=" + genericMetadataNanos / BENCHMARK_ROUNDS / 1000
+                + " typed=" + typedMetadataNanos / BENCHMARK_ROUNDS / 1000);
+    }
+
+    private static Map<String, Object> extras(int start, int count) {
+        Map<String, Object> extras = new HashMap<>();
+        for (int i = start; i < start + count; i++) {
+            switch (i % 5) {
+            case 0: extras.put("int" + i, i); break;
+            case 1: extras.put("long" + i, (long)i << 32); break;
+            case 2: extras.put("double" + i, i / 2.0); break;
+            case 3: extras.put("boolean" + i, i % 2 == 0); break;
+            default: extras.put("string" + i, "value " + i); break;
+            }
+        }
+        return extras;
+    }
+
+    private static MediaMetadataCompat metadata(String mediaId, Map<?, ?> extras) {
+        MediaMetadataCompat.Builder builder = new MediaMetadataCompat.Builder()
+                .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_ID, mediaId)
+                .putString(MediaMetadataCompat.METADATA_KEY_TITLE, "Title " + mediaId)
+                .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, 180000);
+        Extras.putMetadata(builder, extras);
+        return builder.build();
+    }
+}
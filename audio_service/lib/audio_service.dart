@@ -965,12 +965,38 @@ class AudioService {
   /// The root media ID for browsing the most recently played item(s).
   static const String recentRootId = 'recent';
 
+  /// The key in the options passed to [AudioHandler.getChildren] of the
+  /// index of the page to load, starting from 0.
+  static const String browsePageKey = 'android.media.browse.extra.PAGE';
+
+  /// The key in the options passed to [AudioHandler.getChildren] of the
+  /// number of items per page.
+  static const String browsePageSizeKey =
+      'android.media.browse.extra.PAGE_SIZE';
+
+  /// The key in the extras passed to [AudioHandler.playFromSearch] and
+  /// [AudioHandler.prepareFromSearch] of the IDs of the media items that best
+  /// match the query, best first, when
+  /// [AudioServiceConfig.androidSearchIndex] is enabled.
+  static const String searchCandidatesKey =
+      'com.ryanheise.audioservice.SEARCH_CANDIDATES';
+
   static final BehaviorSubject<bool> _notificationClicked =
       BehaviorSubject.seeded(false);
 
   /// A stream that broadcasts the status of the notificationClick event.
   static ValueStream<bool> get notificationClicked => _notificationClicked;
 
+  static final _browseRequestTimeouts = PublishSubject<BrowseRequestTimeout>();
+
+  /// A stream of the browse requests that the platform stopped waiting for
+  /// because the [AudioHandler] took longer than
+  /// [AudioServiceConfig.androidBrowseRequestTimeout] to answer them. The
+  /// media browser will already have been answered with cached or empty
+  /// results by the time the request is emitted.
+  static Stream<BrowseRequestTimeout> get browseRequestTimeouts =>
+      _browseRequestTimeouts.stream;
+
   static final _compatibilitySwitcher = SwitchAudioHandler();
 
   /// Register the app's [AudioHandler] with configuration options. This must be
@@ -1013,6 +1039,50 @@ class AudioService {
     return handler;
   }
 
+  static MediaItemMessage? _pendingMediaItem;
+  static List<MediaItemMessage>? _pendingQueue;
+  static PlaybackStateMessage? _pendingState;
+  static Completer<void>? _pendingBatch;
+
+  /// Sends a media item, queue and/or state to the platform, coalesced with
+  /// any other updates made in the same event loop iteration. A track change
+  /// typically updates all three, and sending them together lets the
+  /// platform apply them as a single transaction.
+  static Future<void> _applyBatch({
+    MediaItemMessage? mediaItem,
+    List<MediaItemMessage>? queue,
+    PlaybackStateMessage? state,
+  }) {
+    if (mediaItem != null) _pendingMediaItem = mediaItem;
+    if (queue != null) _pendingQueue = queue;
+    if (state != null) _pendingState = state;
+    var batch = _pendingBatch;
+    if (batch == null) {
+      batch = _pendingBatch = Completer<void>();
+      Timer.run(_flushBatch);
+    }
+    return batch.future;
+  }
+
+  static Future<void> _flushBatch() async {
+    final batch = _pendingBatch!;
+    final request = ApplyBatchRequest(
+      mediaItem: _pendingMediaItem,
+      queue: _pendingQueue,
+      state: _pendingState,
+    );
+    _pendingBatch = null;
+    _pendingMediaItem = null;
+    _pendingQueue = null;
+    _pendingState = null;
+    try {
+      await _platform.applyBatch(request);
+      batch.complete();
+    } catch (e, stackTrace) {
+      batch.completeError(e, stackTrace);
+    }
+  }
+
   static Future<void> _observeMediaItem() async {
     Object? artFetchOperationId;
     _handler.mediaItem.listen((mediaItem) async {
@@ -1023,8 +1093,7 @@ class AudioService {
       artFetchOperationId = operationId;
       final artUri = mediaItem.artUri;
       if (artUri == null || artUri.scheme == 'content') {
-        _platform.setMediaItem(
-            SetMediaItemRequest(mediaItem: mediaItem._toMessage()));
+        _applyBatch(mediaItem: mediaItem._toMessage());
       } else {
         /// Sends media item to the platform.
         /// We potentially need to fetch the art before that.
@@ -1036,8 +1105,7 @@ class AudioService {
               'artCacheFile': filePath,
             },
           );
-          await _platform.setMediaItem(
-              SetMediaItemRequest(mediaItem: platformMediaItem._toMessage()));
+          await _applyBatch(mediaItem: platformMediaItem._toMessage());
         }
 
         if (artUri.scheme == 'file') {
@@ -1057,8 +1125,7 @@ class AudioService {
           } else {
             // We haven't fetched the art yet, so show the metadata now, and again
             // after we load the art.
-            await _platform.setMediaItem(
-                SetMediaItemRequest(mediaItem: mediaItem._toMessage()));
+            await _applyBatch(mediaItem: mediaItem._toMessage());
             if (operationId != artFetchOperationId) {
               return;
             }
@@ -1090,16 +1157,14 @@ class AudioService {
       if (_config.preloadArtwork) {
         _loadAllArtwork(queue);
       }
-      await _platform.setQueue(SetQueueRequest(
-          queue: queue.map((item) => item._toMessage()).toList()));
+      await _applyBatch(queue: queue.map((item) => item._toMessage()).toList());
     }
   }
 
   static Future<void> _observePlaybackState() async {
     var previousState = _handler.playbackState.nvalue;
     await for (var playbackState in _handler.playbackState) {
-      await _platform
-          .setState(SetStateRequest(state: playbackState._toMessage()));
+      await _applyBatch(state: playbackState._toMessage());
       if (playbackState.processingState == AudioProcessingState.idle &&
           previousState?.processingState != AudioProcessingState.idle) {
         await AudioService._stop();
@@ -1958,6 +2023,12 @@ abstract class AudioHandler {
   Future<void> onNotificationDeleted();
 
   /// Get the children of a parent media item.
+  ///
+  /// If [AudioServiceConfig.androidHandlesBrowsePaging] is set and a browser
+  /// loads the children a page at a time, [options] contains the page to load
+  /// under [AudioService.browsePageKey] and the page size under
+  /// [AudioService.browsePageSizeKey], and only the items of that page should
+  /// be returned.
   Future<List<MediaItem>> getChildren(String parentMediaId,
       [Map<String, dynamic>? options]);
 
@@ -3470,6 +3541,112 @@ class AudioServiceConfig {
   /// Extras to report on Android in response to an `onGetRoot` request.
   final Map<String, dynamic>? androidBrowsableRootExtras;
 
+  /// If not null, only the queue items within this many positions of the
+  /// current [PlaybackState.queueIndex] are published to the Android media
+  /// session, and the window moves along as playback advances. The full queue
+  /// is still available to [AudioHandler.skipToQueueItem].
+  ///
+  /// Set this if your queue may contain thousands of items, which can
+  /// otherwise exceed Android's Binder transaction limits.
+  final int? androidQueueWindowRadius;
+
+  /// The maximum size in bytes of the media metadata, queue and browse
+  /// results sent to Android media controllers, or null to send them
+  /// unchecked.
+  ///
+  /// A payload over this budget is degraded in steps until it fits: bitmaps
+  /// are dropped first, then any extras, and finally the published queue is
+  /// narrowed around the current item or the browse result is truncated.
+  /// Each step is logged as a warning. Bitmaps only count for the bytes sent
+  /// inline, since larger bitmaps are passed in shared memory. This guards
+  /// against `TransactionTooLargeException` crashes caused by Binder's
+  /// transaction size limit, which is shared by all transactions in flight.
+  final int? androidBinderPayloadBudget;
+
+  /// If not null, the children returned by [AudioHandler.getChildren] are
+  /// cached on Android for this long, so that media browsers such as Android
+  /// Auto that repeatedly load the same nodes are answered without calling
+  /// your handler.
+  ///
+  /// The cached children of a parent are invalidated whenever the stream
+  /// returned by [AudioHandler.subscribeToChildren] for it emits, so you
+  /// should only enable this if that stream reports every change.
+  final Duration? androidBrowseCacheTtl;
+
+  /// Whether [AudioHandler.getChildren] returns just the page of children
+  /// requested by [AudioService.browsePageKey] and
+  /// [AudioService.browsePageSizeKey] in its options.
+  ///
+  /// If false, the paging options are not passed to your handler. The full
+  /// list of children is loaded instead, and each page is taken from it on
+  /// Android. Set this if a parent may have so many children that loading
+  /// them all at once is too slow.
+  final bool androidHandlesBrowsePaging;
+
+  /// Whether [AudioHandler.getMediaItem] is still called in the background
+  /// for an item that Android answered from its metadata cache.
+  ///
+  /// Media items that have been in the queue or a browse result are looked up
+  /// without calling your handler. Set this if an item's metadata may change
+  /// without the item being passed to the queue or a browse result again.
+  final bool androidRefreshCachedMediaItems;
+
+  /// The maximum number of [AudioHandler.getChildren],
+  /// [AudioHandler.getMediaItem] and [AudioHandler.search] calls that Android
+  /// may have outstanding at once, or null to use a default of 2.
+  ///
+  /// Further browse requests wait on Android until a call completes, while
+  /// identical requests for the same children share one call.
+  final int? androidMaxConcurrentBrowseRequests;
+
+  /// If not null, how long Android waits for [AudioHandler.getChildren],
+  /// [AudioHandler.getMediaItem] and [AudioHandler.search] to respond before
+  /// answering the media browser without them.
+  ///
+  /// Media browsers such as Android Auto give up on slow responses. When this
+  /// timeout passes, children are answered from the browse cache even if they
+  /// have expired, or else with an empty list, and
+  /// [AudioService.browseRequestTimeouts] emits the request so that your
+  /// handler can stop working on it.
+  final Duration? androidBrowseRequestTimeout;
+
+  /// How many levels below the root Android loads into the browse cache when
+  /// a media browser such as Android Auto connects, so that its first screens
+  /// don't wait on [AudioHandler.getChildren]. A depth of 1 loads the root's
+  /// children, and a depth of 2 also loads the children of the first 8
+  /// browsable children. These loads are sent at a lower priority than the
+  /// browser's own requests. This has no effect unless
+  /// [androidBrowseCacheTtl] is set.
+  ///
+  /// The default of 0 disables prefetching, and the maximum is 2.
+  final int androidBrowsePrefetchDepth;
+
+  /// Whether Android mirrors the responses of [AudioHandler.getChildren] to
+  /// an on-disk catalog. A media browser such as Android Auto that connects
+  /// while your app is not running is then answered from the catalog instead
+  /// of waiting for the Flutter engine to start. Once your handler has
+  /// started and answered the same request, browsers are notified to reload
+  /// any children that have changed since they were stored.
+  ///
+  /// The catalog is kept in the app's private storage, limited to the 500
+  /// most recently used responses and 8MB, and is cleared when this option
+  /// is disabled.
+  final bool androidBrowseCatalog;
+
+  /// Whether Android indexes the title, artist, album and genre of the media
+  /// items that pass through it, from the queue, browse results and the
+  /// now-playing item, to search them natively.
+  ///
+  /// When enabled, a search from a media browser that matches any indexed
+  /// items is answered from the index without calling [AudioHandler.search],
+  /// which is only called when nothing matches. [AudioHandler.playFromSearch]
+  /// and [AudioHandler.prepareFromSearch] receive the IDs of the best
+  /// matching items in their extras under [AudioService.searchCandidatesKey].
+  ///
+  /// Only enable this if the items your app has browsed or queued are a good
+  /// answer to a search, since items it hasn't seen can't be matched.
+  final bool androidSearchIndex;
+
   /// Creates a configuration object.
   const AudioServiceConfig({
     this.androidResumeOnClick = true,
@@ -3488,7 +3665,29 @@ class AudioServiceConfig {
     this.rewindInterval = const Duration(seconds: 10),
     this.preloadArtwork = false,
     this.androidBrowsableRootExtras,
+    this.androidQueueWindowRadius,
+    this.androidBinderPayloadBudget,
+    this.androidBrowseCacheTtl,
+    this.androidHandlesBrowsePaging = false,
+    this.androidRefreshCachedMediaItems = false,
+    this.androidMaxConcurrentBrowseRequests,
+    this.androidBrowseRequestTimeout,
+    this.androidBrowsePrefetchDepth = 0,
+    this.androidBrowseCatalog = false,
+    this.androidSearchIndex = false,
   })  : assert((artDownscaleWidth != null) == (artDownscaleHeight != null)),
+        assert(
+            androidQueueWindowRadius == null || androidQueueWindowRadius > 0),
+        assert(androidBinderPayloadBudget == null ||
+            androidBinderPayloadBudget > 0),
+        assert(androidBrowseCacheTtl == null ||
+            androidBrowseCacheTtl > Duration.zero),
+        assert(androidMaxConcurrentBrowseRequests == null ||
+            androidMaxConcurrentBrowseRequests > 0),
+        assert(androidBrowseRequestTimeout == null ||
+            androidBrowseRequestTimeout > Duration.zero),
+        assert(androidBrowsePrefetchDepth >= 0 &&
+            androidBrowsePrefetchDepth <= 2),
         assert(
           !androidNotificationOngoing || androidStopForegroundOnPause,
           'The androidNotificationOngoing will make no effect with androidStopForegroundOnPause set to false',
@@ -3513,6 +3712,16 @@ class AudioServiceConfig {
         rewindInterval: rewindInterval,
         preloadArtwork: preloadArtwork,
         androidBrowsableRootExtras: androidBrowsableRootExtras,
+        androidQueueWindowRadius: androidQueueWindowRadius,
+        androidBinderPayloadBudget: androidBinderPayloadBudget,
+        androidBrowseCacheTtl: androidBrowseCacheTtl,
+        androidHandlesBrowsePaging: androidHandlesBrowsePaging,
+        androidRefreshCachedMediaItems: androidRefreshCachedMediaItems,
+        androidMaxConcurrentBrowseRequests: androidMaxConcurrentBrowseRequests,
+        androidBrowseRequestTimeout: androidBrowseRequestTimeout,
+        androidBrowsePrefetchDepth: androidBrowsePrefetchDepth,
+        androidBrowseCatalog: androidBrowseCatalog,
+        androidSearchIndex: androidSearchIndex,
       );
 
   @override
@@ -3805,6 +4014,37 @@ class AudioServiceBackground {
   }
 }
 
+/// The kind of browse request in a [BrowseRequestTimeout].
+enum BrowseRequestType {
+  /// A call to [AudioHandler.getChildren].
+  children,
+
+  /// A call to [AudioHandler.getMediaItem].
+  mediaItem,
+
+  /// A call to [AudioHandler.search].
+  search,
+}
+
+/// A browse request that the platform stopped waiting for. See
+/// [AudioService.browseRequestTimeouts].
+class BrowseRequestTimeout {
+  /// The kind of request.
+  final BrowseRequestType type;
+
+  /// The parent media ID, media ID or search query that was requested,
+  /// depending on [type].
+  final String target;
+
+  /// The options or search extras passed with the request.
+  final Map<String, dynamic>? options;
+
+  BrowseRequestTimeout._(this.type, this.target, this.options);
+
+  @override
+  String toString() => 'BrowseRequestTimeout($type, $target)';
+}
+
 class _HandlerCallbacks extends AudioHandlerCallbacks {
   final _handlerCompleter = Completer<AudioHandler>();
 
@@ -3842,17 +4082,49 @@ class _HandlerCallbacks extends AudioHandlerCallbacks {
 
   @override
   Future<GetChildrenResponse> getChildren(GetChildrenRequest request) async {
-    final mediaItems =
-        await _onLoadChildren(request.parentMediaId, request.options);
-    return GetChildrenResponse(
-        children: mediaItems.map((item) => item._toMessage()).toList());
+    _trackBrowseRequest(
+        request.requestId,
+        BrowseRequestTimeout._(BrowseRequestType.children,
+            request.parentMediaId, request.options));
+    try {
+      final mediaItems =
+          await _onLoadChildren(request.parentMediaId, request.options);
+      return GetChildrenResponse(
+          children: mediaItems.map((item) => item._toMessage()).toList());
+    } finally {
+      _pendingBrowseRequests.remove(request.requestId);
+    }
   }
 
   @override
   Future<GetMediaItemResponse> getMediaItem(GetMediaItemRequest request) async {
-    return GetMediaItemResponse(
-        mediaItem: (await (await handlerFuture).getMediaItem(request.mediaId))
-            ?._toMessage());
+    _trackBrowseRequest(
+        request.requestId,
+        BrowseRequestTimeout._(
+            BrowseRequestType.mediaItem, request.mediaId, null));
+    try {
+      return GetMediaItemResponse(
+          mediaItem:
+              (await (await handlerFuture).getMediaItem(request.mediaId))
+                  ?._toMessage());
+    } finally {
+      _pendingBrowseRequests.remove(request.requestId);
+    }
+  }
+
+  /// The browse requests in progress by request ID, so that a timed out
+  /// request can be reported by what was requested.
+  final _pendingBrowseRequests = <int, BrowseRequestTimeout>{};
+
+  void _trackBrowseRequest(int? requestId, BrowseRequestTimeout request) {
+    if (requestId != null) _pendingBrowseRequests[requestId] = request;
+  }
+
+  @override
+  Future<void> browseRequestTimedOut(
+      BrowseRequestTimedOutRequest request) async {
+    final timeout = _pendingBrowseRequests.remove(request.requestId);
+    if (timeout != null) AudioService._browseRequestTimeouts.add(timeout);
   }
 
   @override
@@ -3927,11 +4199,21 @@ class _HandlerCallbacks extends AudioHandlerCallbacks {
       (await handlerFuture).rewind();
 
   @override
-  Future<SearchResponse> search(SearchRequest request) async => SearchResponse(
-      mediaItems:
-          (await (await handlerFuture).search(request.query, request.extras))
+  Future<SearchResponse> search(SearchRequest request) async {
+    _trackBrowseRequest(
+        request.requestId,
+        BrowseRequestTimeout._(
+            BrowseRequestType.search, request.query, request.extras));
+    try {
+      return SearchResponse(
+          mediaItems: (await (await handlerFuture)
+                  .search(request.query, request.extras))
               .map((item) => item._toMessage())
               .toList());
+    } finally {
+      _pendingBrowseRequests.remove(request.requestId);
+    }
+  }
 
   @override
   Future<void> seek(SeekRequest request) async =>
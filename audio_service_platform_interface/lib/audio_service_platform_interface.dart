@@ -1,4 +1,6 @@
+import 'dart:convert';
 import 'dart:io';
+import 'dart:typed_data';
 
 import 'package:audio_service_platform_interface/no_op_audio_service.dart';
 import 'package:flutter/foundation.dart';
@@ -50,6 +52,23 @@ abstract class AudioServicePlatform extends PlatformInterface {
     throw UnimplementedError('setMediaItem() has not been implemented.');
   }
 
+  /// Applies any combination of a media item, queue and state as a single
+  /// update. By default, this sends each part separately in that order.
+  Future<void> applyBatch(ApplyBatchRequest request) async {
+    final mediaItem = request.mediaItem;
+    final queue = request.queue;
+    final state = request.state;
+    if (mediaItem != null) {
+      await setMediaItem(SetMediaItemRequest(mediaItem: mediaItem));
+    }
+    if (queue != null) {
+      await setQueue(SetQueueRequest(queue: queue));
+    }
+    if (state != null) {
+      await setState(SetStateRequest(state: state));
+    }
+  }
+
   Future<void> stopService(StopServiceRequest request) {
     throw UnimplementedError('stopService() has not been implemented.');
   }
@@ -188,6 +207,9 @@ abstract class AudioHandlerCallbacks {
   /// Search for media items.
   Future<SearchResponse> search(SearchRequest request);
 
+  /// Handle the platform no longer waiting for a browse request.
+  Future<void> browseRequestTimedOut(BrowseRequestTimedOutRequest request);
+
   /// Set the remote volume on Android. This works only when using
   /// [RemoteAndroidPlaybackInfoMessage].
   Future<void> androidSetRemoteVolume(AndroidSetRemoteVolumeRequest request);
@@ -783,6 +805,271 @@ enum RatingStyleMessage {
   percentage,
 }
 
+/// Encodes lists of [MediaItemMessage]s into a compact binary format that
+/// the Android implementation decodes directly into media items, instead of
+/// converting a map of boxed values for every item.
+///
+/// Each item starts with a bitmap of the fields that are present, followed
+/// by those fields in order. Strings are length-prefixed UTF-8 and all
+/// numbers are big-endian. Extras values other than `int`, `double`, `bool`,
+/// `String` and `null` are skipped since the platform ignores them anyway.
+class MediaItemCodec {
+  /// The version of the format, written as the first byte.
+  static const int version = 1;
+
+  static const int _album = 1 << 0;
+  static const int _artist = 1 << 1;
+  static const int _genre = 1 << 2;
+  static const int _duration = 1 << 3;
+  static const int _artUri = 1 << 4;
+  static const int _playable = 1 << 5;
+  static const int _displayTitle = 1 << 6;
+  static const int _displaySubtitle = 1 << 7;
+  static const int _displayDescription = 1 << 8;
+  static const int _rating = 1 << 9;
+  static const int _extras = 1 << 10;
+
+  static const int _typeNull = 0;
+  static const int _typeInt = 1;
+  static const int _typeLong = 2;
+  static const int _typeDouble = 3;
+  static const int _typeBool = 4;
+  static const int _typeString = 5;
+
+  /// Encodes [items] into the binary format.
+  static Uint8List encode(List<MediaItemMessage> items) {
+    final writer = _MediaItemWriter();
+    writer.putUint8(version);
+    writer.putInt32(items.length);
+    for (final item in items) {
+      _encodeItem(writer, item);
+    }
+    return writer.takeBytes();
+  }
+
+  /// Decodes a list of items encoded by [encode].
+  static List<MediaItemMessage> decode(Uint8List bytes) {
+    final reader = _MediaItemReader(bytes);
+    final encodedVersion = reader.getUint8();
+    if (encodedVersion != version) {
+      throw ArgumentError('Unsupported media item encoding version: '
+          '$encodedVersion');
+    }
+    final count = reader.getInt32();
+    return List.generate(count, (_) => _decodeItem(reader));
+  }
+
+  static void _encodeItem(_MediaItemWriter writer, MediaItemMessage item) {
+    final extras = item.extras == null
+        ? null
+        : Map.fromEntries(item.extras!.entries
+            .where((entry) => _isEncodable(entry.value)));
+    var fields = 0;
+    if (item.album != null) fields |= _album;
+    if (item.artist != null) fields |= _artist;
+    if (item.genre != null) fields |= _genre;
+    if (item.duration != null) fields |= _duration;
+    if (item.artUri != null) fields |= _artUri;
+    if (item.playable != null) fields |= _playable;
+    if (item.displayTitle != null) fields |= _displayTitle;
+    if (item.displaySubtitle != null) fields |= _displaySubtitle;
+    if (item.displayDescription != null) fields |= _displayDescription;
+    if (item.rating != null) fields |= _rating;
+    if (extras != null && extras.isNotEmpty) fields |= _extras;
+    writer.putInt32(fields);
+    writer.putString(item.id);
+    writer.putString(item.title);
+    if (item.album != null) writer.putString(item.album!);
+    if (item.artist != null) writer.putString(item.artist!);
+    if (item.genre != null) writer.putString(item.genre!);
+    if (item.duration != null) writer.putInt64(item.duration!.inMilliseconds);
+    if (item.artUri != null) writer.putString(item.artUri.toString());
+    if (item.playable != null) writer.putUint8(item.playable! ? 1 : 0);
+    if (item.displayTitle != null) writer.putString(item.displayTitle!);
+    if (item.displaySubtitle != null) writer.putString(item.displaySubtitle!);
+    if (item.displayDescription != null) {
+      writer.putString(item.displayDescription!);
+    }
+    if (item.rating != null) {
+      writer.putUint8(item.rating!.type.index);
+      _encodeValue(writer, item.rating!.value);
+    }
+    if ((fields & _extras) != 0) {
+      writer.putInt32(extras!.length);
+      extras.forEach((key, value) {
+        writer.putString(key);
+        _encodeValue(writer, value);
+      });
+    }
+  }
+
+  static MediaItemMessage _decodeItem(_MediaItemReader reader) {
+    final fields = reader.getInt32();
+    bool has(int field) => (fields & field) != 0;
+    final id = reader.getString();
+    final title = reader.getString();
+    final album = has(_album) ? reader.getString() : null;
+    final artist = has(_artist) ? reader.getString() : null;
+    final genre = has(_genre) ? reader.getString() : null;
+    final duration =
+        has(_duration) ? Duration(milliseconds: reader.getInt64()) : null;
+    final artUri = has(_artUri) ? Uri.parse(reader.getString()) : null;
+    final playable = has(_playable) ? reader.getUint8() != 0 : null;
+    final displayTitle = has(_displayTitle) ? reader.getString() : null;
+    final displaySubtitle = has(_displaySubtitle) ? reader.getString() : null;
+    final displayDescription =
+        has(_displayDescription) ? reader.getString() : null;
+    RatingMessage? rating;
+    if (has(_rating)) {
+      final type = RatingStyleMessage.values[reader.getUint8()];
+      rating = RatingMessage(type: type, value: _decodeValue(reader));
+    }
+    Map<String, dynamic>? extras;
+    if (has(_extras)) {
+      final count = reader.getInt32();
+      extras = <String, dynamic>{};
+      for (var i = 0; i < count; i++) {
+        final key = reader.getString();
+        extras[key] = _decodeValue(reader);
+      }
+    }
+    return MediaItemMessage(
+      id: id,
+      title: title,
+      album: album,
+      artist: artist,
+      genre: genre,
+      duration: duration,
+      artUri: artUri,
+      playable: playable,
+      displayTitle: displayTitle,
+      displaySubtitle: displaySubtitle,
+      displayDescription: displayDescription,
+      rating: rating,
+      extras: extras,
+    );
+  }
+
+  static bool _isEncodable(Object? value) =>
+      value == null ||
+      value is int ||
+      value is double ||
+      value is bool ||
+      value is String;
+
+  static void _encodeValue(_MediaItemWriter writer, Object? value) {
+    if (value == null) {
+      writer.putUint8(_typeNull);
+    } else if (value is int) {
+      // Mirror the standard codec, which sends ints that fit in 32 bits as
+      // Integer and the rest as Long.
+      if (value >= -0x80000000 && value <= 0x7fffffff) {
+        writer.putUint8(_typeInt);
+        writer.putInt32(value);
+      } else {
+        writer.putUint8(_typeLong);
+        writer.putInt64(value);
+      }
+    } else if (value is double) {
+      writer.putUint8(_typeDouble);
+      writer.putFloat64(value);
+    } else if (value is bool) {
+      writer.putUint8(_typeBool);
+      writer.putUint8(value ? 1 : 0);
+    } else if (value is String) {
+      writer.putUint8(_typeString);
+      writer.putString(value);
+    } else {
+      throw ArgumentError.value(value, 'value', 'Unsupported type');
+    }
+  }
+
+  static Object? _decodeValue(_MediaItemReader reader) {
+    final type = reader.getUint8();
+    switch (type) {
+      case _typeNull:
+        return null;
+      case _typeInt:
+        return reader.getInt32();
+      case _typeLong:
+        return reader.getInt64();
+      case _typeDouble:
+        return reader.getFloat64();
+      case _typeBool:
+        return reader.getUint8() != 0;
+      case _typeString:
+        return reader.getString();
+      default:
+        throw ArgumentError('Unknown value type: $type');
+    }
+  }
+}
+
+class _MediaItemWriter {
+  final _builder = BytesBuilder();
+  final _scratch = ByteData(8);
+
+  void putUint8(int value) => _builder.addByte(value);
+
+  void putInt32(int value) {
+    _scratch.setInt32(0, value);
+    _builder.add(_scratch.buffer.asUint8List(0, 4));
+  }
+
+  void putInt64(int value) {
+    _scratch.setInt64(0, value);
+    _builder.add(_scratch.buffer.asUint8List(0, 8));
+  }
+
+  void putFloat64(double value) {
+    _scratch.setFloat64(0, value);
+    _builder.add(_scratch.buffer.asUint8List(0, 8));
+  }
+
+  void putString(String value) {
+    final bytes = utf8.encode(value);
+    putInt32(bytes.length);
+    _builder.add(bytes);
+  }
+
+  Uint8List takeBytes() => _builder.takeBytes();
+}
+
+class _MediaItemReader {
+  final ByteData _data;
+  int _offset = 0;
+
+  _MediaItemReader(Uint8List bytes) : _data = ByteData.sublistView(bytes);
+
+  int getUint8() => _data.getUint8(_offset++);
+
+  int getInt32() {
+    final value = _data.getInt32(_offset);
+    _offset += 4;
+    return value;
+  }
+
+  int getInt64() {
+    final value = _data.getInt64(_offset);
+    _offset += 8;
+    return value;
+  }
+
+  double getFloat64() {
+    final value = _data.getFloat64(_offset);
+    _offset += 8;
+    return value;
+  }
+
+  String getString() {
+    final length = getInt32();
+    final value =
+        utf8.decode(Uint8List.sublistView(_data, _offset, _offset + length));
+    _offset += length;
+    return value;
+  }
+}
+
 class OnNotificationClickedRequest {
   final bool clicked;
 
@@ -819,6 +1106,11 @@ class SetQueueRequest {
   Map<String, dynamic> toMap() => <String, dynamic>{
         'queue': queue.map((item) => item.toMap()).toList(),
       };
+
+  /// Like [toMap], but with the queue encoded by [MediaItemCodec].
+  Map<String, dynamic> toEncodedMap() => <String, dynamic>{
+        'encodedQueue': MediaItemCodec.encode(queue),
+      };
 }
 
 class SetMediaItemRequest {
@@ -831,6 +1123,22 @@ class SetMediaItemRequest {
       };
 }
 
+class ApplyBatchRequest {
+  final MediaItemMessage? mediaItem;
+  final List<MediaItemMessage>? queue;
+  final PlaybackStateMessage? state;
+
+  const ApplyBatchRequest({this.mediaItem, this.queue, this.state});
+
+  /// Converts this request to a map, with the queue encoded by
+  /// [MediaItemCodec] since only the Android implementation applies batches.
+  Map<String, dynamic> toMap() => <String, dynamic>{
+        'mediaItem': mediaItem?.toMap(),
+        'encodedQueue': queue != null ? MediaItemCodec.encode(queue!) : null,
+        'state': state?.toMap(),
+      };
+}
+
 class StopServiceRequest {
   @literal
   const StopServiceRequest();
@@ -1204,12 +1512,17 @@ class GetChildrenRequest {
   final String parentMediaId;
   final Map<String, dynamic>? options;
 
+  /// Identifies this request in a [BrowseRequestTimedOutRequest].
+  final int? requestId;
+
   @literal
-  const GetChildrenRequest({required this.parentMediaId, this.options});
+  const GetChildrenRequest(
+      {required this.parentMediaId, this.options, this.requestId});
 
   Map<String, dynamic> toMap() => <String, dynamic>{
         'parentMediaId': parentMediaId,
         'options': options,
+        'requestId': requestId,
       };
 }
 
@@ -1222,16 +1535,25 @@ class GetChildrenResponse {
   Map<String, dynamic> toMap() => <String, dynamic>{
         'children': children.map((item) => item.toMap()).toList(),
       };
+
+  /// Like [toMap], but with the children encoded by [MediaItemCodec].
+  Map<String, dynamic> toEncodedMap() => <String, dynamic>{
+        'encodedChildren': MediaItemCodec.encode(children),
+      };
 }
 
 class GetMediaItemRequest {
   final String mediaId;
 
+  /// Identifies this request in a [BrowseRequestTimedOutRequest].
+  final int? requestId;
+
   @literal
-  const GetMediaItemRequest({required this.mediaId});
+  const GetMediaItemRequest({required this.mediaId, this.requestId});
 
   Map<String, dynamic> toMap() => <String, dynamic>{
         'mediaId': mediaId,
+        'requestId': requestId,
       };
 }
 
@@ -1250,12 +1572,30 @@ class SearchRequest {
   final String query;
   final Map<String, dynamic>? extras;
 
+  /// Identifies this request in a [BrowseRequestTimedOutRequest].
+  final int? requestId;
+
   @literal
-  const SearchRequest({required this.query, this.extras});
+  const SearchRequest({required this.query, this.extras, this.requestId});
 
   Map<String, dynamic> toMap() => <String, dynamic>{
         'query': query,
         'extras': extras,
+        'requestId': requestId,
+      };
+}
+
+/// Notifies that the platform stopped waiting for the response to a
+/// [GetChildrenRequest], [GetMediaItemRequest] or [SearchRequest] and
+/// answered the media browser without it.
+class BrowseRequestTimedOutRequest {
+  final int requestId;
+
+  @literal
+  const BrowseRequestTimedOutRequest({required this.requestId});
+
+  Map<String, dynamic> toMap() => <String, dynamic>{
+        'requestId': requestId,
       };
 }
 
@@ -1268,6 +1608,11 @@ class SearchResponse {
   Map<String, dynamic> toMap() => <String, dynamic>{
         'mediaItems': mediaItems.map((item) => item.toMap()).toList(),
       };
+
+  /// Like [toMap], but with the media items encoded by [MediaItemCodec].
+  Map<String, dynamic> toEncodedMap() => <String, dynamic>{
+        'encodedMediaItems': MediaItemCodec.encode(mediaItems),
+      };
 }
 
 class AndroidSetRemoteVolumeRequest {
@@ -1383,6 +1728,51 @@ class AudioServiceConfigMessage {
   /// Extras to report on Android in response to an `onGetRoot` request.
   final Map<String, dynamic>? androidBrowsableRootExtras;
 
+  /// If not null, only the queue items within this many positions of the
+  /// current [PlaybackStateMessage.queueIndex] are published to the Android
+  /// media session, and the window moves along as playback advances. This
+  /// avoids exceeding Binder transaction limits with very large queues.
+  final int? androidQueueWindowRadius;
+
+  /// The maximum size in bytes of the media metadata, queue and browse
+  /// results sent to Android media controllers. Larger payloads are degraded
+  /// to fit by dropping bitmaps, then extras, then items. If null, payloads
+  /// are sent unchecked.
+  final int? androidBinderPayloadBudget;
+
+  /// If not null, the children loaded by `getChildren` are cached on Android
+  /// for this long, and invalidated by `notifyChildrenChanged`.
+  final Duration? androidBrowseCacheTtl;
+
+  /// Whether `getChildren` returns just the page requested in its options.
+  /// If false, pages are taken from the full list of children on Android.
+  final bool androidHandlesBrowsePaging;
+
+  /// Whether `getMediaItem` is still called to refresh an item that was
+  /// answered from the metadata cache on Android.
+  final bool androidRefreshCachedMediaItems;
+
+  /// The maximum number of `getChildren`, `getMediaItem` and `search` calls
+  /// that Android may have outstanding at once. If null, a default of 2 is
+  /// used.
+  final int? androidMaxConcurrentBrowseRequests;
+
+  /// If not null, how long Android waits for `getChildren`, `getMediaItem`
+  /// and `search` before answering the browser with a fallback.
+  final Duration? androidBrowseRequestTimeout;
+
+  /// How many levels of children Android loads into the browse cache when a
+  /// media browser connects, up to 2, or 0 to disable prefetching.
+  final int androidBrowsePrefetchDepth;
+
+  /// Whether Android mirrors `getChildren` responses to disk to answer media
+  /// browsers before the Flutter engine is ready.
+  final bool androidBrowseCatalog;
+
+  /// Whether Android indexes the media items it sees to answer `search`
+  /// natively.
+  final bool androidSearchIndex;
+
   @literal
   const AudioServiceConfigMessage({
     this.androidResumeOnClick = true,
@@ -1401,7 +1791,29 @@ class AudioServiceConfigMessage {
     this.rewindInterval = const Duration(seconds: 10),
     this.preloadArtwork = false,
     this.androidBrowsableRootExtras,
+    this.androidQueueWindowRadius,
+    this.androidBinderPayloadBudget,
+    this.androidBrowseCacheTtl,
+    this.androidHandlesBrowsePaging = false,
+    this.androidRefreshCachedMediaItems = false,
+    this.androidMaxConcurrentBrowseRequests,
+    this.androidBrowseRequestTimeout,
+    this.androidBrowsePrefetchDepth = 0,
+    this.androidBrowseCatalog = false,
+    this.androidSearchIndex = false,
   })  : assert((artDownscaleWidth != null) == (artDownscaleHeight != null)),
+        assert(
+            androidQueueWindowRadius == null || androidQueueWindowRadius > 0),
+        assert(androidBinderPayloadBudget == null ||
+            androidBinderPayloadBudget > 0),
+        assert(androidBrowseCacheTtl == null ||
+            androidBrowseCacheTtl > Duration.zero),
+        assert(androidMaxConcurrentBrowseRequests == null ||
+            androidMaxConcurrentBrowseRequests > 0),
+        assert(androidBrowseRequestTimeout == null ||
+            androidBrowseRequestTimeout > Duration.zero),
+        assert(androidBrowsePrefetchDepth >= 0 &&
+            androidBrowsePrefetchDepth <= 2),
         assert(fastForwardInterval > Duration.zero),
         assert(rewindInterval > Duration.zero),
         assert(
@@ -1428,6 +1840,18 @@ class AudioServiceConfigMessage {
         'rewindInterval': rewindInterval.inMilliseconds,
         'preloadArtwork': preloadArtwork,
         'androidBrowsableRootExtras': androidBrowsableRootExtras,
+        'androidQueueWindowRadius': androidQueueWindowRadius,
+        'androidBinderPayloadBudget': androidBinderPayloadBudget,
+        'androidBrowseCacheTtl': androidBrowseCacheTtl?.inMilliseconds,
+        'androidHandlesBrowsePaging': androidHandlesBrowsePaging,
+        'androidRefreshCachedMediaItems': androidRefreshCachedMediaItems,
+        'androidMaxConcurrentBrowseRequests':
+            androidMaxConcurrentBrowseRequests,
+        'androidBrowseRequestTimeout':
+            androidBrowseRequestTimeout?.inMilliseconds,
+        'androidBrowsePrefetchDepth': androidBrowsePrefetchDepth,
+        'androidBrowseCatalog': androidBrowseCatalog,
+        'androidSearchIndex': androidSearchIndex,
       };
 }
 
@@ -21,7 +21,12 @@ class MethodChannelAudioService extends AudioServicePlatform {
 
   @override
   Future<void> setQueue(SetQueueRequest request) async {
-    await handlerChannel.invokeMethod<void>('setQueue', request.toMap());
+    // The Android implementation decodes queues in the compact format.
+    await handlerChannel.invokeMethod<void>(
+        'setQueue',
+        defaultTargetPlatform == TargetPlatform.android
+            ? request.toEncodedMap()
+            : request.toMap());
   }
 
   @override
@@ -29,6 +34,15 @@ class MethodChannelAudioService extends AudioServicePlatform {
     await handlerChannel.invokeMethod<void>('setMediaItem', request.toMap());
   }
 
+  @override
+  Future<void> applyBatch(ApplyBatchRequest request) async {
+    // Only the Android implementation applies batches natively.
+    if (defaultTargetPlatform != TargetPlatform.android) {
+      return super.applyBatch(request);
+    }
+    await handlerChannel.invokeMethod<void>('applyBatch', request.toMap());
+  }
+
   @override
   Future<void> stopService(StopServiceRequest request) async {
     await handlerChannel.invokeMethod<void>('stopService', request.toMap());
@@ -217,21 +231,32 @@ class MethodChannelAudioService extends AudioServicePlatform {
             clicked: call.arguments['clicked'] as bool));
         return null;
       case 'getChildren':
-        return (await callbacks.getChildren(GetChildrenRequest(
-                parentMediaId: call.arguments['parentMediaId'] as String,
-                options: _castMap(
-                    call.arguments['options'] as Map<dynamic, dynamic>?))))
-            .toMap();
+        final childrenResponse = await callbacks.getChildren(GetChildrenRequest(
+            parentMediaId: call.arguments['parentMediaId'] as String,
+            options:
+                _castMap(call.arguments['options'] as Map<dynamic, dynamic>?),
+            requestId: call.arguments['requestId'] as int?));
+        return call.arguments['encodeResponse'] == true
+            ? childrenResponse.toEncodedMap()
+            : childrenResponse.toMap();
       case 'getMediaItem':
         return (await callbacks.getMediaItem(GetMediaItemRequest(
-                mediaId: call.arguments['mediaId'] as String)))
+                mediaId: call.arguments['mediaId'] as String,
+                requestId: call.arguments['requestId'] as int?)))
             .toMap();
       case 'search':
-        return (await callbacks.search(SearchRequest(
-                query: call.arguments['query'] as String,
-                extras: _castMap(
-                    call.arguments['extras'] as Map<dynamic, dynamic>?))))
-            .toMap();
+        final searchResponse = await callbacks.search(SearchRequest(
+            query: call.arguments['query'] as String,
+            extras:
+                _castMap(call.arguments['extras'] as Map<dynamic, dynamic>?),
+            requestId: call.arguments['requestId'] as int?));
+        return call.arguments['encodeResponse'] == true
+            ? searchResponse.toEncodedMap()
+            : searchResponse.toMap();
+      case 'browseRequestTimedOut':
+        await callbacks.browseRequestTimedOut(BrowseRequestTimedOutRequest(
+            requestId: call.arguments['requestId'] as int));
+        return null;
       case 'androidSetRemoteVolume':
         await callbacks.androidSetRemoteVolume(AndroidSetRemoteVolumeRequest(
             volumeIndex: call.arguments['volumeIndex'] as int));
@@ -114,6 +114,55 @@ void main() {
     );
   });
 
+  test('$MediaItemCodec round trips', () {
+    final items = [
+      const MediaItemMessage(id: 'id', title: 'title'),
+      MediaItemMessage(
+        id: 'id2',
+        title: 'títle ▮',
+        album: 'album',
+        artist: 'artist',
+        genre: 'genre',
+        duration: const Duration(hours: 2),
+        artUri: Stubs.uri,
+        playable: false,
+        displayTitle: 'displayTitle',
+        displaySubtitle: 'displaySubtitle',
+        displayDescription: 'displayDescription',
+        rating: const RatingMessage(
+          type: RatingStyleMessage.percentage,
+          value: 50.0,
+        ),
+        extras: const <String, dynamic>{
+          'string': 'value',
+          'int': 1,
+          'long': 1 << 40,
+          'double': 0.5,
+          'bool': true,
+          'null': null,
+        },
+      ),
+    ];
+    final decoded = MediaItemCodec.decode(MediaItemCodec.encode(items));
+    expect(
+      decoded.map((item) => item.toMap()).toList(),
+      items.map((item) => item.toMap()).toList(),
+    );
+  });
+
+  test('$MediaItemCodec skips unsupported extras', () {
+    const item = MediaItemMessage(
+      id: 'id',
+      title: 'title',
+      extras: <String, dynamic>{
+        'key': 'value',
+        'list': <int>[1, 2],
+      },
+    );
+    final decoded = MediaItemCodec.decode(MediaItemCodec.encode([item]));
+    expect(decoded.single.extras, Stubs.map);
+  });
+
   test('$AudioServiceConfigMessage asserts proper notification ongoing config',
       () {
     expect(
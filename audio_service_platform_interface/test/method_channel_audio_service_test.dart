@@ -73,10 +73,12 @@ void main() {
     });
 
     test('setQueue', () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.iOS;
       const request = SetQueueRequest(queue: Stubs.queue);
       final methods = {'setQueue': null};
       final channel = sendHandlerChannel.copyWith(methods);
       await platform.setQueue(request);
+      debugDefaultTargetPlatformOverride = null;
       expect(channel.log, [
         isMethodCall(
           'setQueue',
@@ -85,6 +87,21 @@ void main() {
       ]);
     });
 
+    test('setQueue encodes the queue on Android', () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.android;
+      const request = SetQueueRequest(queue: Stubs.queue);
+      final methods = {'setQueue': null};
+      final channel = sendHandlerChannel.copyWith(methods);
+      await platform.setQueue(request);
+      debugDefaultTargetPlatformOverride = null;
+      expect(channel.log, [
+        isMethodCall(
+          'setQueue',
+          arguments: request.toEncodedMap(),
+        )
+      ]);
+    });
+
     test('setMediaItem', () async {
       const request = SetMediaItemRequest(mediaItem: Stubs.mediaItem);
       final methods = {'setMediaItem': null};
@@ -98,6 +115,49 @@ void main() {
       ]);
     });
 
+    test('applyBatch', () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.android;
+      final request = ApplyBatchRequest(
+        mediaItem: Stubs.mediaItem,
+        queue: Stubs.queue,
+        state: PlaybackStateMessage(),
+      );
+      final methods = {'applyBatch': null};
+      final channel = sendHandlerChannel.copyWith(methods);
+      await platform.applyBatch(request);
+      debugDefaultTargetPlatformOverride = null;
+      expect(channel.log, [
+        isMethodCall(
+          'applyBatch',
+          arguments: request.toMap(),
+        )
+      ]);
+    });
+
+    test('applyBatch falls back to separate calls', () async {
+      debugDefaultTargetPlatformOverride = TargetPlatform.iOS;
+      final state = PlaybackStateMessage();
+      final request = ApplyBatchRequest(
+        mediaItem: Stubs.mediaItem,
+        state: state,
+      );
+      final methods = {'setMediaItem': null, 'setState': null};
+      final channel = sendHandlerChannel.copyWith(methods);
+      await platform.applyBatch(request);
+      debugDefaultTargetPlatformOverride = null;
+      expect(channel.log, [
+        isMethodCall(
+          'setMediaItem',
+          arguments: const SetMediaItemRequest(mediaItem: Stubs.mediaItem)
+              .toMap(),
+        ),
+        isMethodCall(
+          'setState',
+          arguments: SetStateRequest(state: state).toMap(),
+        ),
+      ]);
+    });
+
     test('stopService', () async {
       const request = StopServiceRequest();
       final methods = {'stopService': null};
@@ -613,6 +673,19 @@ void main() {
       }
     });
 
+    test('browseRequestTimedOut', () async {
+      const request = BrowseRequestTimedOutRequest(requestId: 3);
+      await handlerChannel.invokeMethod<void>(
+          'browseRequestTimedOut', request.toMap());
+      final captured = verify(callbacks.browseRequestTimedOut(captureAny))
+          .captured
+          .first as BrowseRequestTimedOutRequest;
+      expect(
+        captured.toMap(),
+        equals(request.toMap()),
+      );
+    });
+
     test('getChildren', () async {
       const request = GetChildrenRequest(
         parentMediaId: Stubs.parentMediaId,
@@ -633,6 +706,21 @@ void main() {
       );
     });
 
+    test('getChildren with encoded response', () async {
+      const request = GetChildrenRequest(parentMediaId: Stubs.parentMediaId);
+      const response = GetChildrenResponse(children: Stubs.queue);
+      when(callbacks.getChildren(any))
+          .thenAnswer((_) => SynchronousFuture(response));
+      final result = await handlerChannel.invokeMapMethod<String, dynamic>(
+        'getChildren',
+        <String, dynamic>{...request.toMap(), 'encodeResponse': true},
+      );
+      expect(
+        result,
+        equals(response.toEncodedMap()),
+      );
+    });
+
     test('getMediaItem', () async {
       const request = GetMediaItemRequest(mediaId: Stubs.mediaId);
       const response = GetMediaItemResponse(mediaItem: Stubs.mediaItem);
@@ -219,6 +219,12 @@ class MockAudioHandlerCallbacks extends _i1.Mock
                   Future<_i2.SearchResponse>.value(_FakeSearchResponse()))
           as _i3.Future<_i2.SearchResponse>);
   @override
+  _i3.Future<void> browseRequestTimedOut(
+          _i2.BrowseRequestTimedOutRequest? request) =>
+      (super.noSuchMethod(Invocation.method(#browseRequestTimedOut, [request]),
+          returnValue: Future<void>.value(),
+          returnValueForMissingStub: Future.value()) as _i3.Future<void>);
+  @override
   _i3.Future<void> androidSetRemoteVolume(
           _i2.AndroidSetRemoteVolumeRequest? request) =>
       (super.noSuchMethod(Invocation.method(#androidSetRemoteVolume, [request]),